@@ -1,3 +1,39 @@
+import com.sun.management.ThreadMXBean;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+import java.util.function.IntToLongFunction;
+
 
 /**
  * Access Control Levels
@@ -16,6 +52,13 @@
 public class AccessControlLevels {
 
     public static void main(String... args) {
+        // `java AccessControlLevels.java bench [queries|concurrent]`
+        // runs the grid benchmarks instead.
+        if (args.length > 0 && args[0].equals("bench")) {
+            GridBenchmarks.run(args.length > 1 ? args[1] : "all");
+            return;
+        }
+
         // I can access [Car].
         var dadCar = new Car("Toyota", "Corolla");
         System.err.println(dadCar);
@@ -30,6 +73,10 @@ public class AccessControlLevels {
         var count = grid.countPlayersAtPosition(position);
 
         System.err.println(STR."There are \{count} players in \{position}.");
+
+        // Players can also move around without rebuilding the grid.
+        var moved = grid.movePlayer(0, 2, 3);
+        System.err.println(STR."Left \{moved.oldCellCount()} behind, joined \{moved.newCellCount()}.");
     }
 }
 
@@ -56,15 +103,108 @@ class Grid {
     public int rows;
     public int columns;
 
+    // How many rows and columns [debugGrid] prints at most.
+    static final int DEBUG_VIEWPORT = 64;
+
     // On the other hand, these fields are only
     // accessible to classes defined within the same package.
-    final Player[] players;
+    //
+    // Players are stored by id: their names, and their positions packed
+    // with [CellIndex.key], so moving a player only overwrites a long.
+    // Positions can live on or off the heap, see [PositionStorage].
+    String[] names;
+    final PositionStore positions;
+    int playerCount;
+
+    // Ids of removed players. Every position is a valid cell, so
+    // none of them can stand for a removed player instead.
+    final BitSet removed = new BitSet();
+
+    // Names of a grid restored from a snapshot are only
+    // decoded when they are asked for, see [name].
+    private GridSnapshot.Names snapshotNames;
+
+    // Ids of removed players, reused by [addPlayer].
+    private int[] freeIds = new int[0];
+    private int freeCount;
+
+    // Index from a cell to the players standing on it, kept up to
+    // date on every change so position lookups never scan [positions].
+    final CellIndex cells;
+
+    // Prefix sums for region counts. It costs an int per cell, so it's
+    // only built the first time a region is queried, and kept up to date
+    // from then on.
+    private RegionIndex regions;
+
+    // Quadtree for proximity queries, also built on first use.
+    private PlayerTree tree;
+
+    // Density heatmaps handed out by [heatmap], one per tile size.
+    private final List<Heatmap> heatmaps = new ArrayList<>();
 
     public Grid(int rows, int columns, Player[] players) {
+        this(rows, columns, players, PositionStorage.HEAP);
+    }
+
+    // Unlike [addPlayer], players outside the grid are accepted here:
+    // they can be looked up by position, but region counts, heatmaps
+    // and proximity queries only see the players inside the grid.
+    public Grid(int rows, int columns, Player[] players, PositionStorage storage) {
+        this(rows, columns, players.length, storage);
+
+        for (var player : players) {
+            this.place(player.name(), CellIndex.key(player.position().x(), player.position().y()));
+        }
+
+        this.debugIfRequested();
+    }
+
+    private Grid(int rows, int columns, int expectedPlayers, PositionStorage storage) {
+        this(rows, columns, expectedPlayers, storage, new CellIndex(expectedPlayers));
+    }
+
+    private Grid(int rows, int columns, int expectedPlayers, PositionStorage storage, CellIndex cells) {
         this.rows = rows;
         this.columns = columns;
-        this.players = players;
 
+        this.names = new String[Math.max(16, expectedPlayers)];
+        this.positions = switch (storage) {
+            case HEAP -> new HeapPositionStore(this.names.length);
+            case OFF_HEAP -> new OffHeapPositionStore(this.names.length);
+        };
+        this.cells = cells;
+    }
+
+    // Writes the size of the grid and the packed positions of its
+    // players to [path], see [GridSnapshot] for the layout.
+    public void writeSnapshot(Path path) throws IOException {
+        GridSnapshot.write(this, path);
+    }
+
+    // Maps a snapshot written by [writeSnapshot] back into a grid. Player
+    // ids are kept, and no [Player] or [Point] is created along the way.
+    public static Grid restoreSnapshot(Path path, PositionStorage storage) throws IOException {
+        return GridSnapshot.read(path, (rows, columns, slots, cells) -> new Grid(rows, columns, slots, storage, cells));
+    }
+
+    // Called by [GridSnapshot] on a grid fresh from the constructor,
+    // which was given the [CellIndex] from the snapshot as well.
+    void load(LongBuffer positions, LongBuffer removed, int slots, GridSnapshot.Names names) {
+        this.grow(slots);
+        this.positions.load(positions, slots);
+        this.removed.or(BitSet.valueOf(removed));
+        this.playerCount = slots;
+        this.snapshotNames = names;
+
+        for (var id = this.removed.nextSetBit(0); id >= 0; id = this.removed.nextSetBit(id + 1)) {
+            this.freeId(id);
+        }
+
+        this.debugIfRequested();
+    }
+
+    private void debugIfRequested() {
 		var shouldDebug = System.getenv("DEBUG_APP");
 		switch (shouldDebug) {
 			case null -> {}
@@ -78,49 +218,1720 @@ class Grid {
         System.err.println(STR.
         "Grid: \{this.rows}x\{this.columns}.");
 
-        // Get headers.
-        var columnHeader = "";
-        var columnHeaderBorder = "";
-        var body = "";
+        // Only the top left corner is printed, rendering a huge
+        // grid in full would just flood the terminal.
+        var out = new BufferedWriter(new OutputStreamWriter(System.err));
+        try {
+            new GridRenderer(this).render(out, 0, DEBUG_VIEWPORT - 1, 0, DEBUG_VIEWPORT - 1);
+            if (this.rows >= DEBUG_VIEWPORT || this.columns >= DEBUG_VIEWPORT) {
+                out.write(STR."(showing the first \{DEBUG_VIEWPORT}x\{DEBUG_VIEWPORT} cells)\n");
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-        for (var i = 0; i <= this.rows; i++) {
-            body += STR."\{i}|";
+    public int countPlayersAtPosition(Point position) {
+        return this.countPlayersAt(position.x(), position.y());
+    }
 
-            for (var j = 0; j <= this.columns; j++) {
-                // Only build this header in the first iteration of columns
-                // because we only need it once.
-                if (i == 0) {
-                    columnHeader += STR."\{j} ";
-                    columnHeaderBorder += "- ";
-                }
+    // Same as [countPlayersAtPosition], but without having
+    // to allocate a [Point] for every lookup.
+    public int countPlayersAt(int x, int y) {
+        return this.cells.count(CellIndex.key(x, y));
+    }
 
-				var count = this.countPlayersAtPosition(new Point(i, j));
-                if (count > 0) {
-                    body += STR."\{count}|";
-                } else {
-                    body += " |";
+    public List<Player> playersAtPosition(Point position) {
+        var key = CellIndex.key(position.x(), position.y());
+        var result = new ArrayList<Player>(this.cells.count(key));
+
+        for (var id = this.cells.first(key); id != CellIndex.NONE; id = this.cells.next(id)) {
+            result.add(this.player(id));
+        }
+
+        return result;
+    }
+
+    // Materializes the player with the given id. Only meant for
+    // callers that really need a [Player], the grid itself doesn't.
+    public Player player(int id) {
+        this.checkPlayer(id);
+        var position = this.positions.get(id);
+        return new Player(this.name(id), new Point(CellIndex.x(position), CellIndex.y(position)));
+    }
+
+    public int addPlayer(Player player) {
+        return this.addPlayer(player.name(), player.position().x(), player.position().y()).playerId();
+    }
+
+    // Places a new player on the grid. The returned counts are -1 for
+    // the old cell (there is none) and the count of the new cell.
+    public CellCounts addPlayer(String name, int x, int y) {
+        this.checkInBounds(x, y);
+        return this.place(name, CellIndex.key(x, y));
+    }
+
+    private CellCounts place(String name, long key) {
+        int id;
+        if (this.freeCount > 0) {
+            id = this.freeIds[--this.freeCount];
+        } else {
+            id = this.playerCount++;
+            if (id == this.names.length) {
+                this.grow(id * 2);
+            }
+        }
+
+        this.names[id] = name;
+        this.positions.set(id, key);
+        this.removed.clear(id);
+
+        var newCount = this.cells.add(key, id);
+        this.onAdded(id, key);
+
+        return new CellCounts(id, -1, newCount);
+    }
+
+    // Moves a player in place: neither the player nor its
+    // position are reallocated, only the index is updated.
+    public CellCounts movePlayer(int id, int x, int y) {
+        this.checkPlayer(id);
+        this.checkInBounds(x, y);
+
+        var from = this.positions.get(id);
+        var to = CellIndex.key(x, y);
+        if (from == to) {
+            var count = this.cells.count(to);
+            return new CellCounts(id, count, count);
+        }
+
+        var oldCount = this.cells.remove(from, id);
+        var newCount = this.cells.add(to, id);
+        this.positions.set(id, to);
+        this.onMoved(id, from, to);
+
+        return new CellCounts(id, oldCount, newCount);
+    }
+
+    // Takes a player off the grid. The returned counts are the count
+    // of the cell it left and -1 for the new cell (there is none).
+    public CellCounts removePlayer(int id) {
+        this.checkPlayer(id);
+
+        var from = this.positions.get(id);
+        var oldCount = this.cells.remove(from, id);
+        this.onRemoved(id, from);
+        this.names[id] = null;
+        this.removed.set(id);
+        this.freeId(id);
+
+        return new CellCounts(id, oldCount, -1);
+    }
+
+    String name(int id) {
+        var name = this.names[id];
+        if (name == null && this.snapshotNames != null) {
+            name = this.snapshotNames.get(id);
+            this.names[id] = name;
+        }
+        return name;
+    }
+
+    boolean isRemoved(int id) {
+        return this.removed.get(id);
+    }
+
+    private void grow(int capacity) {
+        if (capacity > this.names.length) {
+            this.names = Arrays.copyOf(this.names, capacity);
+            this.positions.grow(capacity);
+        }
+    }
+
+    private void freeId(int id) {
+        if (this.freeCount == this.freeIds.length) {
+            this.freeIds = Arrays.copyOf(this.freeIds, Math.max(16, this.freeCount * 2));
+        }
+        this.freeIds[this.freeCount++] = id;
+    }
+
+    // Number of players whose position lies inside the rectangle, both
+    // corners inclusive. The rectangle is clipped to the grid.
+    public int countPlayersInRegion(int fromX, int fromY, int toX, int toY) {
+        if (this.regions == null || !this.regions.fits(this.rows, this.columns)) {
+            this.regions = new RegionIndex(this.rows, this.columns, this);
+        }
+
+        return this.regions.count(fromX, fromY, toX, toY);
+    }
+
+    // The [k] players closest to [origin], nearest first.
+    public List<Player> nearestPlayers(Point origin, int k) {
+        var ids = this.tree().nearest(origin.x(), origin.y(), k);
+        var result = new ArrayList<Player>(ids.length);
+        for (var id : ids) {
+            result.add(this.player(id));
+        }
+        return result;
+    }
+
+    // Players whose (euclidean) distance to [origin] is at most [radius].
+    public List<Player> playersWithinRadius(Point origin, int radius) {
+        var result = new ArrayList<Player>();
+        this.tree().withinRadius(origin.x(), origin.y(), radius, id -> result.add(this.player(id)));
+        return result;
+    }
+
+    // Visits every player straight from the packed positions,
+    // without materializing a [Player] or a [Point].
+    public void forEachPlayer(PlayerPositionConsumer action) {
+        for (var id = this.removed.nextClearBit(0); id < this.playerCount; id = this.removed.nextClearBit(id + 1)) {
+            var position = this.positions.get(id);
+            action.accept(id, CellIndex.x(position), CellIndex.y(position));
+        }
+    }
+
+    private PlayerTree tree() {
+        if (this.tree == null || !this.tree.fits(this.rows, this.columns)) {
+            var tree = new PlayerTree(this.rows, this.columns);
+            this.forEachPlayer((id, x, y) -> {
+                if (this.inBounds(x, y)) {
+                    tree.insert(id, x, y);
                 }
+            });
+            this.tree = tree;
+        }
+        return this.tree;
+    }
+
+    // Player counts bucketed into tiles of [tileSize] x [tileSize] cells.
+    // The heatmap is kept up to date as players come, go and move, so
+    // reading it is always just reading an array.
+    public Heatmap heatmap(int tileSize) {
+        for (var heatmap : this.heatmaps) {
+            if (heatmap.tileSize() == tileSize && heatmap.fits(this.rows, this.columns)) {
+                return heatmap;
+            }
+        }
+
+        var heatmap = new Heatmap(this.rows, this.columns, tileSize);
+        this.forEachPlayer((id, x, y) -> {
+            if (this.inBounds(x, y)) {
+                heatmap.add(x, y, 1);
             }
+        });
+        this.heatmaps.removeIf(stale -> stale.tileSize() == tileSize);
+        this.heatmaps.add(heatmap);
+        return heatmap;
+    }
 
-            // Each row in a single line.
-            body += "\n";
+    // Stops maintaining a heatmap returned by [heatmap].
+    public void dropHeatmap(Heatmap heatmap) {
+        this.heatmaps.remove(heatmap);
+    }
+
+    // Keeps the derived structures in sync with the players. They
+    // only cover the grid, players outside of it are left out.
+
+    private void onAdded(int id, long key) {
+        this.dropStale();
+        if (!this.inBounds(CellIndex.x(key), CellIndex.y(key))) {
+            return;
+        }
+        if (this.regions != null) {
+            this.regions.add(CellIndex.x(key), CellIndex.y(key), 1);
         }
+        if (this.tree != null) {
+            this.tree.insert(id, CellIndex.x(key), CellIndex.y(key));
+        }
+        for (var heatmap : this.heatmaps) {
+            heatmap.add(CellIndex.x(key), CellIndex.y(key), 1);
+        }
+    }
 
-        var gridString = STR.
-        "  \{columnHeader}\n  \{columnHeaderBorder}\n\{body}";
-        System.err.println(gridString);
+    private void onMoved(int id, long from, long to) {
+        this.dropStale();
+        // Players given to the constructor, or left outside
+        // when the grid shrank, can start outside.
+        if (!this.inBounds(CellIndex.x(from), CellIndex.y(from))) {
+            this.onAdded(id, to);
+            return;
+        }
+        if (this.regions != null) {
+            this.regions.add(CellIndex.x(from), CellIndex.y(from), -1);
+            this.regions.add(CellIndex.x(to), CellIndex.y(to), 1);
+        }
+        if (this.tree != null) {
+            this.tree.remove(id, CellIndex.x(from), CellIndex.y(from));
+            this.tree.insert(id, CellIndex.x(to), CellIndex.y(to));
+        }
+        for (var heatmap : this.heatmaps) {
+            heatmap.move(CellIndex.x(from), CellIndex.y(from), CellIndex.x(to), CellIndex.y(to));
+        }
     }
 
-    public int countPlayersAtPosition(Point position) {
-        var count = 0;
+    private void onRemoved(int id, long key) {
+        this.dropStale();
+        if (!this.inBounds(CellIndex.x(key), CellIndex.y(key))) {
+            return;
+        }
+        if (this.regions != null) {
+            this.regions.add(CellIndex.x(key), CellIndex.y(key), -1);
+        }
+        if (this.tree != null) {
+            this.tree.remove(id, CellIndex.x(key), CellIndex.y(key));
+        }
+        for (var heatmap : this.heatmaps) {
+            heatmap.add(CellIndex.x(key), CellIndex.y(key), -1);
+        }
+    }
+
+    // [rows] and [columns] are public, so the grid may no longer be the
+    // one a structure was sized for. Such structures are dropped rather
+    // than updated, and built again the next time they are needed. A
+    // heatmap handed out before stops changing, [heatmap] builds a new one.
+    private void dropStale() {
+        if (this.regions != null && !this.regions.fits(this.rows, this.columns)) {
+            this.regions = null;
+        }
+        if (this.tree != null && !this.tree.fits(this.rows, this.columns)) {
+            this.tree = null;
+        }
+        this.heatmaps.removeIf(heatmap -> !heatmap.fits(this.rows, this.columns));
+    }
+
+    private void checkPlayer(int id) {
+        if (id < 0 || id >= this.playerCount || this.isRemoved(id)) {
+            throw new IllegalArgumentException(STR."Unknown player id: \{id}.");
+        }
+    }
+
+    // Cells go from 0 to [rows] and from 0 to [columns], both inclusive.
+    private boolean inBounds(int x, int y) {
+        return x >= 0 && x <= this.rows && y >= 0 && y <= this.columns;
+    }
+
+    private void checkInBounds(int x, int y) {
+        if (!this.inBounds(x, y)) {
+            throw new IllegalArgumentException(STR."Position (\{x}, \{y}) is outside the grid.");
+        }
+    }
+}
+
+// Player counts of a [Grid] per tile of [tileSize] x [tileSize] cells,
+// updated by the grid on every change. Tiles on the last row and column
+// may be cut short by the edge of the grid.
+class Heatmap {
+    private final int rows;
+    private final int columns;
+    private final int tileSize;
+    private final int tileRows;
+    private final int tileColumns;
+    private final int[] counts;
+
+    Heatmap(int rows, int columns, int tileSize) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException(STR."Invalid tile size: \{tileSize}.");
+        }
+
+        this.rows = rows;
+        this.columns = columns;
+        this.tileSize = tileSize;
+        this.tileRows = rows / tileSize + 1;
+        this.tileColumns = columns / tileSize + 1;
+        this.counts = new int[Math.multiplyExact(this.tileRows, this.tileColumns)];
+    }
+
+    public int tileSize() {
+        return this.tileSize;
+    }
+
+    public int tileRows() {
+        return this.tileRows;
+    }
+
+    public int tileColumns() {
+        return this.tileColumns;
+    }
+
+    public int count(int tileRow, int tileColumn) {
+        return this.counts[tileRow * this.tileColumns + tileColumn];
+    }
+
+    // Row-major copy of all the counts, ready to be charted.
+    public int[] counts() {
+        return this.counts.clone();
+    }
+
+    boolean fits(int rows, int columns) {
+        return this.rows == rows && this.columns == columns;
+    }
+
+    void add(int x, int y, int delta) {
+        this.counts[this.tile(x, y)] += delta;
+    }
+
+    void move(int fromX, int fromY, int toX, int toY) {
+        var from = this.tile(fromX, fromY);
+        var to = this.tile(toX, toY);
+        if (from != to) {
+            this.counts[from]--;
+            this.counts[to]++;
+        }
+    }
+
+    private int tile(int x, int y) {
+        return (x / this.tileSize) * this.tileColumns + y / this.tileSize;
+    }
+}
+
+// Where a [Grid] keeps the packed positions of its players.
+enum PositionStorage {
+    // A plain long[].
+    HEAP,
+    // Native memory, invisible to the garbage collector.
+    OFF_HEAP
+}
+
+// Packed player positions (see [CellIndex.key]) indexed by player id.
+interface PositionStore {
+    long get(int id);
+
+    void set(int id, long position);
+
+    // Makes room for at least [capacity] players, keeping the positions.
+    void grow(int capacity);
+
+    // Bulk copies the first [count] positions from [source].
+    void load(LongBuffer source, int count);
+}
+
+class HeapPositionStore implements PositionStore {
+    private long[] positions;
+
+    HeapPositionStore(int capacity) {
+        this.positions = new long[capacity];
+    }
+
+    @Override
+    public long get(int id) {
+        return this.positions[id];
+    }
+
+    @Override
+    public void set(int id, long position) {
+        this.positions[id] = position;
+    }
+
+    @Override
+    public void grow(int capacity) {
+        if (capacity > this.positions.length) {
+            this.positions = Arrays.copyOf(this.positions, capacity);
+        }
+    }
+
+    @Override
+    public void load(LongBuffer source, int count) {
+        source.get(0, this.positions, 0, count);
+    }
+}
+
+// Keeps the positions in a [MemorySegment], so millions of players
+// are a single block of native memory rather than heap objects.
+//
+// The memory comes from an automatic arena: it's freed once the
+// segment is no longer reachable, so there's nothing to close.
+class OffHeapPositionStore implements PositionStore {
+    private MemorySegment positions;
+
+    OffHeapPositionStore(int capacity) {
+        this.positions = allocate(capacity);
+    }
+
+    @Override
+    public long get(int id) {
+        return this.positions.getAtIndex(ValueLayout.JAVA_LONG, id);
+    }
+
+    @Override
+    public void set(int id, long position) {
+        this.positions.setAtIndex(ValueLayout.JAVA_LONG, id, position);
+    }
+
+    @Override
+    public void grow(int capacity) {
+        if (capacity > this.positions.byteSize() / Long.BYTES) {
+            var grown = allocate(capacity);
+            MemorySegment.copy(this.positions, 0, grown, 0, this.positions.byteSize());
+            this.positions = grown;
+        }
+    }
+
+    // The source may be in any byte order, a mapped snapshot is little
+    // endian, so the copy converts to the native order on the way.
+    @Override
+    public void load(LongBuffer source, int count) {
+        var order = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(source.order());
+        MemorySegment.copy(MemorySegment.ofBuffer(source), order, 0, this.positions, ValueLayout.JAVA_LONG, 0, count);
+    }
+
+    private static MemorySegment allocate(int capacity) {
+        return Arena.ofAuto().allocate((long) capacity * Long.BYTES, Long.BYTES);
+    }
+}
+
+// Reads and writes [Grid] snapshots. All numbers are little endian:
+//
+//   int    magic, "GRID"
+//   int    format version
+//   int    rows
+//   int    columns
+//   int    slots, the number of player ids in use (removed ones included)
+//   int    capacity of the cell table
+//   long   size in bytes of the names section
+//   int    number of occupied cells
+//   int    reserved
+//   long[] packed position of every slot, meaningless for removed ones
+//   long[] bitset of the removed slots, one bit per slot
+//   long[] cell table keys   \
+//   int[]  cell table counts  | the arrays of the [CellIndex], as is
+//   int[]  cell table heads   |
+//   int[]  next id of every slot on the same cell
+//   int[]  previous id of every slot on the same cell
+//   int[]  end of the name of every slot, relative to the names section
+//   byte[] names section, the UTF-8 names one after the other
+//
+// Everything before the names has a fixed size, so restoring is mapping
+// the file and bulk copying the positions and the cell index, without
+// hashing a single cell; names are decoded lazily.
+final class GridSnapshot {
+    private static final int MAGIC = 0x47524944;
+    private static final int FORMAT = 3;
+    private static final int HEADER_SIZE = 40;
+
+    private GridSnapshot() {
+    }
+
+    interface GridFactory {
+        Grid create(int rows, int columns, int slots, CellIndex cells);
+    }
+
+    static void write(Grid grid, Path path) throws IOException {
+        var slots = grid.playerCount;
+
+        var names = new byte[slots][];
+        var namesSize = 0L;
+        for (var id = 0; id < slots; id++) {
+            names[id] = grid.isRemoved(id) ? new byte[0] : grid.name(id).getBytes(StandardCharsets.UTF_8);
+            namesSize += names[id].length;
+        }
+
+        // Write next to the target and move it over it once complete,
+        // so a crash never leaves a half written snapshot behind.
+        var temporary = path.resolveSibling(STR."\{path.getFileName()}.tmp");
+        try (var channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            var out = new ChannelOutput(channel);
+
+            out.reserve(HEADER_SIZE)
+                .putInt(MAGIC)
+                .putInt(FORMAT)
+                .putInt(grid.rows)
+                .putInt(grid.columns)
+                .putInt(slots)
+                .putInt(grid.cells.capacity())
+                .putLong(namesSize)
+                .putInt(grid.cells.size())
+                .putInt(0);
+
+            for (var id = 0; id < slots; id++) {
+                out.reserve(Long.BYTES).putLong(grid.positions.get(id));
+            }
+
+            var removed = Arrays.copyOf(grid.removed.toLongArray(), removedWords(slots));
+            for (var word : removed) {
+                out.reserve(Long.BYTES).putLong(word);
+            }
+
+            var cells = grid.cells;
+            for (var slot = 0; slot < cells.capacity(); slot++) {
+                out.reserve(Long.BYTES).putLong(cells.keyAt(slot));
+            }
+            for (var slot = 0; slot < cells.capacity(); slot++) {
+                out.reserve(Integer.BYTES).putInt(cells.countAt(slot));
+            }
+            for (var slot = 0; slot < cells.capacity(); slot++) {
+                out.reserve(Integer.BYTES).putInt(cells.headAt(slot));
+            }
+            for (var id = 0; id < slots; id++) {
+                out.reserve(Integer.BYTES).putInt(cells.next(id));
+            }
+            for (var id = 0; id < slots; id++) {
+                out.reserve(Integer.BYTES).putInt(cells.previous(id));
+            }
+
+            var end = 0L;
+            for (var id = 0; id < slots; id++) {
+                end += names[id].length;
+                out.reserve(Integer.BYTES).putInt(Math.toIntExact(end));
+            }
 
-        for (var player : this.players) {
-            if (player.position().equals(position)) {
-                count++;
+            for (var name : names) {
+                out.write(name);
             }
+
+            out.flush();
+            channel.force(true);
         }
 
-        return count;
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static Grid read(Path path, GridFactory factory) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(STR."Snapshot \{path} is too large to map (\{channel.size()} bytes).");
+            }
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(STR."Snapshot \{path} is truncated.");
+            }
+
+            // The mapping stays valid after the channel is closed.
+            var file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            if (file.getInt(0) != MAGIC) {
+                throw new IOException(STR."\{path} is not a grid snapshot.");
+            }
+            if (file.getInt(4) != FORMAT) {
+                throw new IOException(STR."Unsupported grid snapshot format: \{file.getInt(4)}.");
+            }
+
+            var rows = file.getInt(8);
+            var columns = file.getInt(12);
+            var slots = file.getInt(16);
+            var capacity = file.getInt(20);
+            var namesSize = file.getLong(24);
+            var occupied = file.getInt(32);
+            if (Integer.bitCount(capacity) != 1 || capacity > channel.size()) {
+                throw new IOException(STR."Invalid cell table capacity in snapshot \{path}: \{capacity}.");
+            }
+
+            var positionsStart = HEADER_SIZE;
+            var removedStart = positionsStart + slots * Long.BYTES;
+            var keysStart = removedStart + removedWords(slots) * Long.BYTES;
+            var countsStart = keysStart + capacity * Long.BYTES;
+            var headsStart = countsStart + capacity * Integer.BYTES;
+            var nextStart = headsStart + capacity * Integer.BYTES;
+            var previousStart = nextStart + slots * Integer.BYTES;
+            var endsStart = previousStart + slots * Integer.BYTES;
+            var namesStart = endsStart + slots * Integer.BYTES;
+            if (namesStart + namesSize != channel.size()) {
+                throw new IOException(STR."Snapshot \{path} is truncated.");
+            }
+
+            var positions = file.slice(positionsStart, slots * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            var removed = file.slice(removedStart, removedWords(slots) * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            var ends = file.slice(endsStart, slots * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            var names = file.slice(namesStart, (int) namesSize);
+
+            var cells = new CellIndex(
+                file.slice(keysStart, capacity * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer(),
+                file.slice(countsStart, capacity * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer(),
+                file.slice(headsStart, capacity * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer(),
+                occupied,
+                file.slice(nextStart, slots * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer(),
+                file.slice(previousStart, slots * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer()
+            );
+
+            var grid = factory.create(rows, columns, slots, cells);
+            grid.load(positions, removed, slots, new Names(ends, names));
+            return grid;
+        }
+    }
+
+    private static int removedWords(int slots) {
+        return (slots + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    // Names in a mapped snapshot.
+    static final class Names {
+        private final IntBuffer ends;
+        private final ByteBuffer bytes;
+
+        private Names(IntBuffer ends, ByteBuffer bytes) {
+            this.ends = ends;
+            this.bytes = bytes;
+        }
+
+        // Null for ids that are not part of the snapshot.
+        String get(int id) {
+            if (id >= this.ends.limit()) {
+                return null;
+            }
+
+            var start = id == 0 ? 0 : this.ends.get(id - 1);
+            var name = new byte[this.ends.get(id) - start];
+            this.bytes.get(start, name);
+            return new String(name, StandardCharsets.UTF_8);
+        }
+    }
+
+    // Buffers writes to a channel in large chunks.
+    private static final class ChannelOutput {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+        ChannelOutput(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        // Returns the buffer with at least [size] bytes free.
+        ByteBuffer reserve(int size) throws IOException {
+            if (this.buffer.remaining() < size) {
+                this.flush();
+            }
+            return this.buffer;
+        }
+
+        void write(byte[] bytes) throws IOException {
+            var offset = 0;
+            while (offset < bytes.length) {
+                var length = Math.min(bytes.length - offset, this.reserve(1).remaining());
+                this.buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        void flush() throws IOException {
+            this.buffer.flip();
+            while (this.buffer.hasRemaining()) {
+                this.channel.write(this.buffer);
+            }
+            this.buffer.clear();
+        }
+    }
+}
+
+// A [Grid] that many threads can change at once.
+//
+// The rows are split into bands, and every band has its own lock and
+// its own [CellIndex], so threads moving players in different bands
+// don't wait for each other. A move across bands takes both locks,
+// always in band order so that two such moves can't deadlock, and
+// the player is never seen in both cells or in neither.
+//
+// The links between players on the same cell are indexed by id, so
+// the bands share one pair of link arrays: a player's links are only
+// touched under the lock of the band its cell is in, and those of the
+// players next to it are in the same cell.
+//
+// Unlike [Grid], the size is fixed (no public mutable fields here),
+// and so is the maximum number of players.
+class ConcurrentGrid {
+    // Marks the position of an id that is free or was removed.
+    private static final long ABSENT = -1;
+
+    private final int rows;
+    private final int columns;
+    private final int bandHeight;
+    private final Band[] bands;
+
+    private final String[] names;
+    private final AtomicLongArray positions;
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    ConcurrentGrid(int rows, int columns, int bandCount, int maxPlayers) {
+        this.rows = rows;
+        this.columns = columns;
+        this.bandHeight = Math.max(1, (rows + bandCount) / bandCount);
+        this.bands = new Band[(rows + this.bandHeight) / this.bandHeight];
+        var next = new int[maxPlayers];
+        var previous = new int[maxPlayers];
+        for (var i = 0; i < this.bands.length; i++) {
+            this.bands[i] = new Band(i, new CellIndex(maxPlayers / this.bands.length, next, previous));
+        }
+
+        this.names = new String[maxPlayers];
+        this.positions = new AtomicLongArray(maxPlayers);
+    }
+
+    public int countPlayersAt(int x, int y) {
+        // Like [Grid], nobody stands outside the grid.
+        if (!this.inBounds(x, y)) {
+            return 0;
+        }
+
+        var band = this.band(x);
+        band.lock.lock();
+        try {
+            return band.cells.count(CellIndex.key(x, y));
+        } finally {
+            band.lock.unlock();
+        }
+    }
+
+    public CellCounts addPlayer(String name, int x, int y) {
+        this.checkInBounds(x, y);
+
+        var id = this.nextId.getAndIncrement();
+        if (id >= this.names.length) {
+            this.nextId.decrementAndGet();
+            throw new IllegalStateException(STR."The grid is full (\{this.names.length} players).");
+        }
+
+        var key = CellIndex.key(x, y);
+        this.names[id] = name;
+
+        var band = this.band(x);
+        band.lock.lock();
+        try {
+            var newCount = band.cells.add(key, id);
+            // Publishes the name as well.
+            this.positions.set(id, key);
+            return new CellCounts(id, -1, newCount);
+        } finally {
+            band.lock.unlock();
+        }
+    }
+
+    public CellCounts movePlayer(int id, int x, int y) {
+        this.checkInBounds(x, y);
+        var to = CellIndex.key(x, y);
+
+        while (true) {
+            var from = this.position(id);
+            var source = this.band(CellIndex.x(from));
+            var target = this.band(x);
+
+            var first = source.index < target.index ? source : target;
+            var second = source.index < target.index ? target : source;
+            first.lock.lock();
+            second.lock.lock();
+            try {
+                // Another thread moved it while we were waiting, start over.
+                if (this.positions.get(id) != from) {
+                    continue;
+                }
+                if (from == to) {
+                    var count = target.cells.count(to);
+                    return new CellCounts(id, count, count);
+                }
+
+                var oldCount = source.cells.remove(from, id);
+                var newCount = target.cells.add(to, id);
+                this.positions.set(id, to);
+                return new CellCounts(id, oldCount, newCount);
+            } finally {
+                second.lock.unlock();
+                first.lock.unlock();
+            }
+        }
+    }
+
+    // Removed ids are not reused, the grid is sized up front.
+    public CellCounts removePlayer(int id) {
+        while (true) {
+            var from = this.position(id);
+            var band = this.band(CellIndex.x(from));
+
+            band.lock.lock();
+            try {
+                if (this.positions.get(id) != from) {
+                    continue;
+                }
+
+                var oldCount = band.cells.remove(from, id);
+                this.positions.set(id, ABSENT);
+                return new CellCounts(id, oldCount, -1);
+            } finally {
+                band.lock.unlock();
+            }
+        }
+    }
+
+    private long position(int id) {
+        var position = id < 0 || id >= this.names.length ? ABSENT : this.positions.get(id);
+        if (position == ABSENT) {
+            throw new IllegalArgumentException(STR."Unknown player id: \{id}.");
+        }
+        return position;
+    }
+
+    private Band band(int x) {
+        return this.bands[x / this.bandHeight];
+    }
+
+    private boolean inBounds(int x, int y) {
+        return x >= 0 && x <= this.rows && y >= 0 && y <= this.columns;
+    }
+
+    private void checkInBounds(int x, int y) {
+        if (!this.inBounds(x, y)) {
+            throw new IllegalArgumentException(STR."Position (\{x}, \{y}) is outside the grid.");
+        }
+    }
+
+    private static final class Band {
+        // Defines the locking order.
+        final int index;
+        final ReentrantLock lock = new ReentrantLock();
+        final CellIndex cells;
+
+        Band(int index, CellIndex cells) {
+            this.index = index;
+            this.cells = cells;
+        }
+    }
+}
+
+// Hand-rolled benchmarks for the grids, printed to stderr.
+//
+// There is no build tool in this repository to pull JMH in, so this is a
+// small harness in the same spirit: warm up first, then run the
+// operations untimed for throughput and the bytes allocated per
+// operation, then again in small timed batches for latency percentiles.
+// Every result is folded into [sink] so the JIT can't drop the work.
+final class GridBenchmarks {
+    private static final int[] GRID_SIZES = {1_000, 10_000};
+    private static final int[] PLAYER_COUNTS = {10_000, 1_000_000};
+
+    private static final ThreadMXBean THREADS = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // A latency batch runs for about this long, so that reading the
+    // clock is a small part of what is measured.
+    private static final long BATCH_NANOS = 1_000;
+
+    // Where the results end up, see [measure].
+    private static volatile long sink;
+
+    // How players are spread over the grid.
+    enum Distribution {
+        UNIFORM,
+        // Around a few hot spots, like players gathering in towns.
+        CLUSTERED
+    }
+
+    private GridBenchmarks() {
+    }
+
+    static void run(String suite) {
+        switch (suite) {
+            case "all" -> {
+                queries();
+                concurrentScaling();
+            }
+            case "queries" -> queries();
+            case "concurrent" -> concurrentScaling();
+            default -> throw new IllegalArgumentException(STR."Unknown benchmark suite: \{suite}.");
+        }
+    }
+
+    // [Grid] construction, [Grid.countPlayersAtPosition] and rendering the
+    // [Grid.debugGrid] viewport, for every size, player count and distribution.
+    static void queries() {
+        for (var size : GRID_SIZES) {
+            for (var playerCount : PLAYER_COUNTS) {
+                for (var distribution : Distribution.values()) {
+                    System.err.println(STR."Grid \{size}x\{size}, \{playerCount} players, \{distribution}:");
+
+                    var players = players(size, playerCount, distribution, new Random(42));
+
+                    measure("constructor", 10, 3, i -> new Grid(size, size, players).playerCount);
+
+                    var grid = new Grid(size, size, players);
+                    var random = new Random(7);
+                    var points = new Point[1 << 16];
+                    for (var i = 0; i < points.length; i++) {
+                        // Half of the lookups hit a player, the other half a random cell.
+                        points[i] = i % 2 == 0
+                            ? players[random.nextInt(players.length)].position()
+                            : new Point(random.nextInt(size + 1), random.nextInt(size + 1));
+                    }
+                    measure("countPlayersAtPosition", 1_000_000, 200_000, i -> grid.countPlayersAtPosition(points[i & (points.length - 1)]));
+
+                    var renderer = new GridRenderer(grid);
+                    var out = Writer.nullWriter();
+                    measure("render debug viewport", 2_000, 500, i -> {
+                        try {
+                            renderer.render(out, 0, Grid.DEBUG_VIEWPORT - 1, 0, Grid.DEBUG_VIEWPORT - 1);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        return i;
+                    });
+                }
+            }
+        }
+    }
+
+    static Player[] players(int size, int count, Distribution distribution, Random random) {
+        var players = new Player[count];
+        var hotSpots = new Point[16];
+        for (var i = 0; i < hotSpots.length; i++) {
+            hotSpots[i] = new Point(random.nextInt(size + 1), random.nextInt(size + 1));
+        }
+
+        for (var i = 0; i < count; i++) {
+            var position = switch (distribution) {
+                case UNIFORM -> new Point(random.nextInt(size + 1), random.nextInt(size + 1));
+                case CLUSTERED -> {
+                    var center = hotSpots[random.nextInt(hotSpots.length)];
+                    var spread = size / 100.0 + 1;
+                    yield new Point(
+                        clamp((int) (center.x() + random.nextGaussian() * spread), size),
+                        clamp((int) (center.y() + random.nextGaussian() * spread), size)
+                    );
+                }
+            };
+            players[i] = new Player(STR."player-\{i}", position);
+        }
+
+        return players;
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(max, value));
+    }
+
+    // Runs [warmup] operations, then [operations] in one untimed loop
+    // for throughput, then [operations] more in timed batches for the
+    // latencies. A batch is as many operations as take [BATCH_NANOS],
+    // and each of them is counted with the mean latency of its batch.
+    private static void measure(String name, int operations, int warmup, IntToLongFunction operation) {
+        var result = 0L;
+        for (var i = 0; i < warmup; i++) {
+            result += operation.applyAsLong(i);
+        }
+
+        var thread = Thread.currentThread().threadId();
+        var allocatedBefore = THREADS.getThreadAllocatedBytes(thread);
+        var start = System.nanoTime();
+
+        for (var i = 0; i < operations; i++) {
+            result += operation.applyAsLong(i);
+        }
+
+        var elapsed = System.nanoTime() - start;
+        var allocated = THREADS.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+        var batchSize = (int) Math.max(1, Math.min(operations, BATCH_NANOS * operations / Math.max(1, elapsed)));
+        var latencies = new long[operations / batchSize];
+        for (var batch = 0; batch < latencies.length; batch++) {
+            var before = System.nanoTime();
+            for (var i = batch * batchSize; i < (batch + 1) * batchSize; i++) {
+                result += operation.applyAsLong(i);
+            }
+            latencies[batch] = (System.nanoTime() - before) / batchSize;
+        }
+        Arrays.sort(latencies);
+        sink = result;
+
+        System.err.println(STR.
+        "  \{name}: \{operations * 1_000_000_000L / Math.max(1, elapsed)} ops/s, \{allocated / operations} B/op, \{allocated * 1_000L / Math.max(1, elapsed)} MB/s allocated, p50 \{percentile(latencies, 0.5)} ns, p99 \{percentile(latencies, 0.99)} ns, p99.9 \{percentile(latencies, 0.999)} ns (batches of \{batchSize})");
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))];
+    }
+
+    // Throughput of [ConcurrentGrid.movePlayer] from 1 thread up to one
+    // thread per core. Every thread walks its own players one cell at a
+    // time, so moves are local and only some of them cross into another band.
+    static void concurrentScaling() {
+        final int size = 4_000;
+        final int players = 1_000_000;
+        var cores = Runtime.getRuntime().availableProcessors();
+
+        System.err.println(STR."ConcurrentGrid moves, \{size}x\{size} cells, \{players} players, \{cores} cores.");
+
+        for (var threads : threadCounts(cores)) {
+            var grid = new ConcurrentGrid(size, size, cores * 8, players);
+            var xs = new int[players];
+            var ys = new int[players];
+            var random = new Random(42);
+            for (var id = 0; id < players; id++) {
+                xs[id] = random.nextInt(size + 1);
+                ys[id] = random.nextInt(size + 1);
+                grid.addPlayer("player", xs[id], ys[id]);
+            }
+
+            var moves = new LongAdder();
+            var deadline = System.nanoTime() + Duration.ofSeconds(2).toNanos();
+            var workers = new Thread[threads];
+            for (var t = 0; t < threads; t++) {
+                final int first = players / threads * t;
+                final int count = players / threads;
+
+                workers[t] = new Thread(() -> {
+                    var local = ThreadLocalRandom.current();
+                    var done = 0L;
+                    while (System.nanoTime() < deadline) {
+                        var id = first + local.nextInt(count);
+                        xs[id] = Math.max(0, Math.min(size, xs[id] + local.nextInt(-1, 2)));
+                        ys[id] = Math.max(0, Math.min(size, ys[id] + local.nextInt(-1, 2)));
+                        grid.movePlayer(id, xs[id], ys[id]);
+                        done++;
+                    }
+                    moves.add(done);
+                });
+                workers[t].start();
+            }
+            for (var worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+
+            System.err.println(STR."  \{threads} threads: \{moves.sum() / 2} moves/s");
+        }
+    }
+
+    // 1, 2, 4... and finally [cores].
+    private static List<Integer> threadCounts(int cores) {
+        var counts = new ArrayList<Integer>();
+        for (var threads = 1; threads < cores; threads *= 2) {
+            counts.add(threads);
+        }
+        counts.add(cores);
+        return counts;
+    }
+}
+
+// A two-dimensional Fenwick (binary indexed) tree over the cells of a
+// grid. Both updating a cell and counting the players inside a
+// rectangle take O(log(rows) * log(columns)).
+class RegionIndex {
+    private final int rows;
+    private final int columns;
+
+    // Row-major, 1-based: cell (x, y) lives at (x + 1) * width + (y + 1).
+    private final int width;
+    private final int[] tree;
+
+    RegionIndex(int rows, int columns, Grid grid) {
+        this.rows = rows;
+        this.columns = columns;
+        this.width = columns + 2;
+        this.tree = new int[Math.multiplyExact(rows + 2, this.width)];
+
+        grid.forEachPlayer((id, x, y) -> {
+            if (x >= 0 && x <= rows && y >= 0 && y <= columns) {
+                this.tree[(x + 1) * this.width + y + 1]++;
+            }
+        });
+
+        // Linear time build: push every node into its parent,
+        // first along the columns and then along the rows.
+        for (var i = 1; i <= rows + 1; i++) {
+            for (var j = 1; j <= columns + 1; j++) {
+                var parent = j + (j & -j);
+                if (parent <= columns + 1) {
+                    this.tree[i * this.width + parent] += this.tree[i * this.width + j];
+                }
+            }
+        }
+        for (var i = 1; i <= rows + 1; i++) {
+            var parent = i + (i & -i);
+            if (parent <= rows + 1) {
+                for (var j = 1; j <= columns + 1; j++) {
+                    this.tree[parent * this.width + j] += this.tree[i * this.width + j];
+                }
+            }
+        }
+    }
+
+    // [Grid.rows] and [Grid.columns] are public, so they may have changed.
+    boolean fits(int rows, int columns) {
+        return this.rows == rows && this.columns == columns;
+    }
+
+    void add(int x, int y, int delta) {
+        for (var i = x + 1; i <= this.rows + 1; i += i & -i) {
+            for (var j = y + 1; j <= this.columns + 1; j += j & -j) {
+                this.tree[i * this.width + j] += delta;
+            }
+        }
+    }
+
+    int count(int fromX, int fromY, int toX, int toY) {
+        var x0 = Math.max(0, fromX);
+        var y0 = Math.max(0, fromY);
+        var x1 = Math.min(toX, this.rows);
+        var y1 = Math.min(toY, this.columns);
+        if (x0 > x1 || y0 > y1) {
+            return 0;
+        }
+
+        return this.prefix(x1, y1) - this.prefix(x0 - 1, y1) - this.prefix(x1, y0 - 1) + this.prefix(x0 - 1, y0 - 1);
+    }
+
+    // Players in the rectangle from (0, 0) to (x, y).
+    private int prefix(int x, int y) {
+        var sum = 0;
+        for (var i = x + 1; i > 0; i -= i & -i) {
+            for (var j = y + 1; j > 0; j -= j & -j) {
+                sum += this.tree[i * this.width + j];
+            }
+        }
+        return sum;
+    }
+}
+
+// A bucket quadtree over player positions. Every node covers a
+// rectangle of cells and splits it in four once it holds more than
+// [CAPACITY] players, and merges back when players leave, so it
+// follows the players as they move.
+class PlayerTree {
+    private static final int CAPACITY = 8;
+
+    private final int rows;
+    private final int columns;
+    private final Node root;
+
+    PlayerTree(int rows, int columns) {
+        this.rows = rows;
+        this.columns = columns;
+        this.root = new Node(0, 0, rows, columns);
+    }
+
+    boolean fits(int rows, int columns) {
+        return this.rows == rows && this.columns == columns;
+    }
+
+    void insert(int id, int x, int y) {
+        this.root.insert(id, x, y);
+    }
+
+    void remove(int id, int x, int y) {
+        this.root.remove(id, x, y);
+    }
+
+    // Best-first search: nodes are visited closest first, and the search
+    // stops once no node can beat the k-th best player found so far.
+    int[] nearest(int x, int y, int k) {
+        if (k <= 0) {
+            return new int[0];
+        }
+
+        // Farthest of the best candidates on top.
+        var best = new PriorityQueue<Neighbour>(Comparator.comparingLong(Neighbour::distance).reversed());
+        var pending = new PriorityQueue<Neighbour>(Comparator.comparingLong(Neighbour::distance));
+        var nodes = new ArrayList<Node>();
+
+        nodes.add(this.root);
+        pending.add(new Neighbour(0, this.root.distance(x, y)));
+
+        while (!pending.isEmpty()) {
+            var next = pending.poll();
+            if (best.size() == k && next.distance() > best.peek().distance()) {
+                break;
+            }
+
+            var node = nodes.get(next.id());
+            if (node.children == null) {
+                for (var i = 0; i < node.size; i++) {
+                    var distance = distance(x, y, node.xs[i], node.ys[i]);
+                    if (best.size() < k) {
+                        best.add(new Neighbour(node.ids[i], distance));
+                    } else if (distance < best.peek().distance()) {
+                        best.poll();
+                        best.add(new Neighbour(node.ids[i], distance));
+                    }
+                }
+            } else {
+                for (var child : node.children) {
+                    if (child.count > 0) {
+                        nodes.add(child);
+                        pending.add(new Neighbour(nodes.size() - 1, child.distance(x, y)));
+                    }
+                }
+            }
+        }
+
+        var result = new int[best.size()];
+        for (var i = result.length - 1; i >= 0; i--) {
+            result[i] = best.poll().id();
+        }
+        return result;
+    }
+
+    void withinRadius(int x, int y, int radius, IntConsumer action) {
+        if (radius >= 0) {
+            this.root.withinRadius(x, y, (long) radius * radius, action);
+        }
+    }
+
+    private static long distance(int x0, int y0, int x1, int y1) {
+        long dx = x0 - x1;
+        long dy = y0 - y1;
+        return dx * dx + dy * dy;
+    }
+
+    // Squared distance, so no square roots are needed.
+    private record Neighbour(int id, long distance) {
+
+    }
+
+    private static final class Node {
+        // Covered cells, all inclusive.
+        final int minX;
+        final int minY;
+        final int maxX;
+        final int maxY;
+
+        // Players in the whole subtree.
+        int count;
+
+        // Only set for leaves.
+        int[] ids = new int[CAPACITY];
+        int[] xs = new int[CAPACITY];
+        int[] ys = new int[CAPACITY];
+        int size;
+
+        // Only set for inner nodes.
+        Node[] children;
+
+        Node(int minX, int minY, int maxX, int maxY) {
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+        }
+
+        void insert(int id, int x, int y) {
+            this.count++;
+
+            if (this.children != null) {
+                this.child(x, y).insert(id, x, y);
+                return;
+            }
+
+            if (this.size == this.ids.length) {
+                // A single cell can't be split, so let it grow instead.
+                if (this.minX == this.maxX && this.minY == this.maxY) {
+                    this.ids = Arrays.copyOf(this.ids, this.size * 2);
+                    this.xs = Arrays.copyOf(this.xs, this.size * 2);
+                    this.ys = Arrays.copyOf(this.ys, this.size * 2);
+                } else {
+                    this.split();
+                    this.child(x, y).insert(id, x, y);
+                    return;
+                }
+            }
+
+            this.ids[this.size] = id;
+            this.xs[this.size] = x;
+            this.ys[this.size] = y;
+            this.size++;
+        }
+
+        void remove(int id, int x, int y) {
+            this.count--;
+
+            if (this.children != null) {
+                this.child(x, y).remove(id, x, y);
+                if (this.count <= CAPACITY / 2) {
+                    this.merge();
+                }
+                return;
+            }
+
+            for (var i = 0; i < this.size; i++) {
+                if (this.ids[i] == id) {
+                    this.size--;
+                    this.ids[i] = this.ids[this.size];
+                    this.xs[i] = this.xs[this.size];
+                    this.ys[i] = this.ys[this.size];
+                    return;
+                }
+            }
+
+            throw new IllegalStateException(STR."Player \{id} is not in the tree at (\{x}, \{y}).");
+        }
+
+        void withinRadius(int x, int y, long radius, IntConsumer action) {
+            if (this.count == 0 || this.distance(x, y) > radius) {
+                return;
+            }
+
+            if (this.children != null) {
+                for (var child : this.children) {
+                    child.withinRadius(x, y, radius, action);
+                }
+                return;
+            }
+
+            for (var i = 0; i < this.size; i++) {
+                if (PlayerTree.distance(x, y, this.xs[i], this.ys[i]) <= radius) {
+                    action.accept(this.ids[i]);
+                }
+            }
+        }
+
+        // Squared distance from a cell to the closest cell of this node.
+        long distance(int x, int y) {
+            long dx = x < this.minX ? this.minX - x : x > this.maxX ? x - this.maxX : 0;
+            long dy = y < this.minY ? this.minY - y : y > this.maxY ? y - this.maxY : 0;
+            return dx * dx + dy * dy;
+        }
+
+        private Node child(int x, int y) {
+            var midX = (this.minX + this.maxX) >>> 1;
+            var midY = (this.minY + this.maxY) >>> 1;
+            return this.children[(x <= midX ? 0 : 2) + (y <= midY ? 0 : 1)];
+        }
+
+        private void split() {
+            var midX = (this.minX + this.maxX) >>> 1;
+            var midY = (this.minY + this.maxY) >>> 1;
+
+            // A node that is a single row or column gets empty children
+            // on the side that doesn't exist, they are never reached.
+            this.children = new Node[]{
+                new Node(this.minX, this.minY, midX, midY),
+                new Node(this.minX, midY + 1, midX, this.maxY),
+                new Node(midX + 1, this.minY, this.maxX, midY),
+                new Node(midX + 1, midY + 1, this.maxX, this.maxY)
+            };
+
+            for (var i = 0; i < this.size; i++) {
+                this.child(this.xs[i], this.ys[i]).insert(this.ids[i], this.xs[i], this.ys[i]);
+            }
+
+            this.ids = null;
+            this.xs = null;
+            this.ys = null;
+            this.size = 0;
+        }
+
+        private void merge() {
+            var children = this.children;
+            this.children = null;
+            this.ids = new int[CAPACITY];
+            this.xs = new int[CAPACITY];
+            this.ys = new int[CAPACITY];
+            this.size = 0;
+
+            for (var child : children) {
+                child.forEach((id, x, y) -> {
+                    this.ids[this.size] = id;
+                    this.xs[this.size] = x;
+                    this.ys[this.size] = y;
+                    this.size++;
+                });
+            }
+        }
+
+        private void forEach(PlayerPositionConsumer action) {
+            if (this.children != null) {
+                for (var child : this.children) {
+                    child.forEach(action);
+                }
+                return;
+            }
+
+            for (var i = 0; i < this.size; i++) {
+                action.accept(this.ids[i], this.xs[i], this.ys[i]);
+            }
+        }
+    }
+}
+
+// Receives a player id and its position as plain ints.
+interface PlayerPositionConsumer {
+    void accept(int id, int x, int y);
+}
+
+// Renders a window of a [Grid] row by row into a [Writer], reusing a
+// single line buffer, so the cost depends on the size of the window
+// and not on the size of the grid.
+class GridRenderer {
+    private final Grid grid;
+    private final StringBuilder line = new StringBuilder();
+
+    GridRenderer(Grid grid) {
+        this.grid = grid;
+    }
+
+    // Both ends of the window are inclusive, and it's clipped to the grid.
+    void render(Writer out, int fromRow, int toRow, int fromColumn, int toColumn) throws IOException {
+        var firstRow = Math.max(0, fromRow);
+        var lastRow = Math.min(toRow, this.grid.rows);
+        var firstColumn = Math.max(0, fromColumn);
+        var lastColumn = Math.min(toColumn, this.grid.columns);
+
+        // Headers.
+        this.line.setLength(0);
+        this.line.append("  ");
+        for (var j = firstColumn; j <= lastColumn; j++) {
+            this.line.append(j).append(' ');
+        }
+        this.line.append("\n  ");
+        for (var j = firstColumn; j <= lastColumn; j++) {
+            this.line.append("- ");
+        }
+        this.line.append('\n');
+        out.append(this.line);
+
+        // Each row in a single line, written as soon as it's ready.
+        for (var i = firstRow; i <= lastRow; i++) {
+            this.line.setLength(0);
+            this.line.append(i).append('|');
+
+            for (var j = firstColumn; j <= lastColumn; j++) {
+                var count = this.grid.countPlayersAt(i, j);
+                if (count > 0) {
+                    this.line.append(count);
+                } else {
+                    this.line.append(' ');
+                }
+                this.line.append('|');
+            }
+
+            this.line.append('\n');
+            out.append(this.line);
+        }
+    }
+}
+
+// The number of players on the cell a player left and on the cell it
+// arrived at, so callers can react to a change without another lookup.
+record CellCounts(int playerId, int oldCellCount, int newCellCount) {
+
+}
+
+// An open-addressing hash table from a packed (x, y) cell key to the
+// number of players on that cell, plus the head of an intrusive doubly
+// linked list of the ids of those players.
+//
+// Keys, counts and links live in primitive arrays, so a lookup is a couple
+// of array reads, and adding, moving or removing a player allocates nothing
+// unless an array has to grow.
+class CellIndex {
+    static final int NONE = -1;
+
+    // Every long is a valid key, so free slots are the ones with
+    // a count of zero: cells are dropped once they are empty.
+    private long[] keys;
+    private int[] counts;
+    private int[] heads;
+    private int size;
+
+    // Next and previous player ids on the same cell, indexed by player id.
+    private int[] next;
+    private int[] previous;
+
+    CellIndex(int expectedPlayers) {
+        this(expectedPlayers, new int[Math.max(16, expectedPlayers)], new int[Math.max(16, expectedPlayers)]);
+    }
+
+    // Shares the links with other indexes that split the players between
+    // them, each id being in one of them at a time (see [ConcurrentGrid]).
+    // The arrays must already fit every id that will be added.
+    CellIndex(int expectedPlayers, int[] next, int[] previous) {
+        var capacity = Integer.highestOneBit(Math.max(16, expectedPlayers * 2 - 1)) << 1;
+        this.keys = new long[capacity];
+        this.counts = new int[capacity];
+        this.heads = new int[capacity];
+        this.next = next;
+        this.previous = previous;
+    }
+
+    // Copies the arrays of an index written by [GridSnapshot], nothing
+    // is hashed again. The links are sized for the ids they hold.
+    CellIndex(LongBuffer keys, IntBuffer counts, IntBuffer heads, int size, IntBuffer next, IntBuffer previous) {
+        this.keys = new long[keys.remaining()];
+        this.counts = new int[counts.remaining()];
+        this.heads = new int[heads.remaining()];
+        keys.get(0, this.keys);
+        counts.get(0, this.counts);
+        heads.get(0, this.heads);
+        this.size = size;
+
+        this.next = new int[Math.max(16, next.remaining())];
+        this.previous = new int[Math.max(16, previous.remaining())];
+        next.get(0, this.next, 0, next.remaining());
+        previous.get(0, this.previous, 0, previous.remaining());
+    }
+
+    static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    static int x(long key) {
+        return (int) (key >> 32);
+    }
+
+    static int y(long key) {
+        return (int) key;
+    }
+
+    int count(long key) {
+        var slot = this.find(key);
+        return slot < 0 ? 0 : this.counts[slot];
+    }
+
+    int first(long key) {
+        var slot = this.find(key);
+        return slot < 0 ? NONE : this.heads[slot];
+    }
+
+    int next(int id) {
+        return this.next[id];
+    }
+
+    int previous(int id) {
+        return this.previous[id];
+    }
+
+    // The raw table, for [GridSnapshot].
+
+    int capacity() {
+        return this.keys.length;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    long keyAt(int slot) {
+        return this.keys[slot];
+    }
+
+    int countAt(int slot) {
+        return this.counts[slot];
+    }
+
+    int headAt(int slot) {
+        return this.heads[slot];
+    }
+
+    // Returns the number of players on the cell after adding this one.
+    int add(long key, int id) {
+        if (id >= this.next.length) {
+            var length = Math.max(id + 1, this.next.length * 2);
+            this.next = Arrays.copyOf(this.next, length);
+            this.previous = Arrays.copyOf(this.previous, length);
+        }
+
+        var slot = this.find(key);
+        if (slot < 0) {
+            if ((this.size + 1) * 2 > this.keys.length) {
+                this.resize();
+            }
+
+            slot = this.insertionSlot(key);
+            this.keys[slot] = key;
+            this.heads[slot] = NONE;
+            this.size++;
+        }
+
+        var head = this.heads[slot];
+        if (head != NONE) {
+            this.previous[head] = id;
+        }
+        this.next[id] = head;
+        this.previous[id] = NONE;
+        this.heads[slot] = id;
+
+        return ++this.counts[slot];
+    }
+
+    // Returns the number of players left on the cell. Empty cells are
+    // dropped from the table so it only ever holds occupied cells.
+    int remove(long key, int id) {
+        var slot = this.find(key);
+        if (slot < 0) {
+            throw new IllegalStateException(STR."Player \{id} is not indexed at cell \{key}.");
+        }
+
+        var before = this.previous[id];
+        var after = this.next[id];
+        if (before == NONE) {
+            this.heads[slot] = after;
+        } else {
+            this.next[before] = after;
+        }
+        if (after != NONE) {
+            this.previous[after] = before;
+        }
+
+        var count = --this.counts[slot];
+        if (count == 0) {
+            this.delete(slot);
+        }
+
+        return count;
+    }
+
+    private int find(long key) {
+        var mask = this.keys.length - 1;
+        for (var slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            if (this.counts[slot] == 0) {
+                return -1;
+            }
+            if (this.keys[slot] == key) {
+                return slot;
+            }
+        }
+    }
+
+    private int insertionSlot(long key) {
+        var mask = this.keys.length - 1;
+        var slot = hash(key) & mask;
+        while (this.counts[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // Backward shift deletion: entries after the removed slot are moved
+    // back so that probing never needs tombstones.
+    private void delete(int slot) {
+        var mask = this.keys.length - 1;
+        var hole = slot;
+
+        for (var i = (hole + 1) & mask; this.counts[i] != 0; i = (i + 1) & mask) {
+            var home = hash(this.keys[i]) & mask;
+            // Only move the entry if the hole lies on its probe path.
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                this.keys[hole] = this.keys[i];
+                this.counts[hole] = this.counts[i];
+                this.heads[hole] = this.heads[i];
+                hole = i;
+            }
+        }
+
+        this.counts[hole] = 0;
+        this.size--;
+    }
+
+    private void resize() {
+        var oldKeys = this.keys;
+        var oldCounts = this.counts;
+        var oldHeads = this.heads;
+
+        this.keys = new long[oldKeys.length * 2];
+        this.counts = new int[oldKeys.length * 2];
+        this.heads = new int[oldKeys.length * 2];
+
+        for (var i = 0; i < oldKeys.length; i++) {
+            if (oldCounts[i] != 0) {
+                var slot = this.insertionSlot(oldKeys[i]);
+                this.keys[slot] = oldKeys[i];
+                this.counts[slot] = oldCounts[i];
+                this.heads[slot] = oldHeads[i];
+            }
+        }
+    }
+
+    // Mixes the bits of the key, neighbouring cells
+    // would otherwise land on neighbouring slots.
+    private static int hash(long key) {
+        var h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
     }
 }
 
@@ -1,4 +1,50 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 /**
  * Inheritance.
@@ -115,21 +161,2396 @@ class MountainBike extends Bicycle {
  * in this way the subclass has a kind of indirect access to private members.
  */
 
-class Store {
+abstract class Store implements AutoCloseable {
 	private static final String VERSION = "1.0.0";
 
+	// The record stored under [key], or null if there is none.
+	public abstract Record get(String key);
+
+	// Stores [record] under [key], replacing whatever was there.
+	public abstract void put(String key, Record record);
+
+	// Returns whether there was a record under [key].
+	public abstract boolean delete(String key);
+
+	public boolean contains(String key) {
+		return this.get(key) != null;
+	}
+
+	// The records with keys from [fromKey] (inclusive) to [toKey]
+	// (exclusive), in key order or in reverse, as [String.compareTo]
+	// orders them. A null bound leaves that side open.
+	public abstract Scan scan(String fromKey, String toKey, boolean descending);
+
+	public Scan scan(String fromKey, String toKey) {
+		return this.scan(fromKey, toKey, false);
+	}
+
+	// The records whose key starts with [prefix].
+	public Scan scanPrefix(String prefix, boolean descending) {
+		return this.scan(prefix, prefixEnd(prefix), descending);
+	}
+
+	// The first key after all those starting with [prefix],
+	// or null if there's none.
+	static String prefixEnd(String prefix) {
+		for (var i = prefix.length() - 1; i >= 0; i--) {
+			final var c = prefix.charAt(i);
+			if (c != Character.MAX_VALUE) {
+				return prefix.substring(0, i) + (char) (c + 1);
+			}
+		}
+		return null;
+	}
+
+	// The part of [map] a [scan] covers, in the order it asks for.
+	static <V> NavigableMap<String, V> range(NavigableMap<String, V> map, String fromKey, String toKey, boolean descending) {
+		final NavigableMap<String, V> range;
+		if (fromKey == null) {
+			range = toKey == null ? map : map.headMap(toKey, false);
+		} else {
+			// An empty range if [toKey] isn't after [fromKey].
+			range = toKey == null ? map.tailMap(fromKey, true) : map.subMap(fromKey, true, fromKey.compareTo(toKey) < 0 ? toKey : fromKey, false);
+		}
+		return descending ? range.descendingMap() : range;
+	}
+
+	// Stores that hold files or threads release them here.
+	@Override
+	public void close() throws IOException {
+	}
+
+	// The values kept in a store. The bytes are not copied,
+	// so they must not be changed once handed over.
 	public static class Record {
-		public String getVersion() {
+		private final byte[] value;
+		private final long version;
+
+		public Record(byte[] value) {
+			this(value, 0);
+		}
+
+		Record(byte[] value, long version) {
+			this.value = value;
+			this.version = version;
+		}
+
+		public byte[] getValue() {
+			return this.value;
+		}
+
+		// The version of the write that stored it, in a [VersionedStore]:
+		// every write gets a greater one than the last. Zero in other
+		// stores, and for records that haven't been stored yet.
+		public long getVersion() {
+			return this.version;
+		}
+
+		public String getFormatVersion() {
 			return Store.VERSION;
 		}
 	}
+
+	// Reads what the store holds as it goes, it isn't a snapshot. Must
+	// be closed if it isn't read to the end, stores that keep files
+	// can't delete those it's reading in the meantime.
+	public interface Scan extends Iterator<Map.Entry<String, Record>>, AutoCloseable {
+		@Override
+		void close();
+	}
+}
+
+// A store that keeps versions of its records, and can be read as it was
+// at one of them. Only some stores can, so it's not part of [Store].
+interface VersionedStore {
+	// The version of the last write.
+	long version();
+
+	// A consistent view of the store as of [version], which writers don't disturb.
+	Snapshot openSnapshot();
+
+	// Must be closed, old versions are kept around for as long as it's open.
+	interface Snapshot extends AutoCloseable {
+		long getVersion();
+
+		// The record under [key] as of [getVersion], or null.
+		Store.Record get(String key);
+
+		void forEach(BiConsumer<String, Store.Record> action);
+
+		// Like [Store.scan], as of [getVersion].
+		Store.Scan scan(String fromKey, String toKey, boolean descending);
+
+		default Store.Scan scanPrefix(String prefix, boolean descending) {
+			return this.scan(prefix, Store.prefixEnd(prefix), descending);
+		}
+
+		@Override
+		void close();
+	}
 }
 
-class InMemoryStore extends  Store {
+// Keeps the records in an open-addressing hash table with linear
+// probing, where every key holds a chain of versions, newest first.
+// The same entries are kept in key order in a [ConcurrentSkipListMap],
+// for [scan].
+//
+// Every write gets the next version number, and readers never take a
+// lock: [get] reads the newest version, and a [Snapshot] reads the newest
+// one at or before the version it was opened at, so a long scan sees the
+// store as it was while writers carry on. Writers are serialized among
+// themselves, and trim the versions no open snapshot can see anymore.
+//
+// With [ValueStorage.OFF_HEAP], the bytes of the values are kept in a
+// [SlabAllocator] instead of in records, and the heap only holds the
+// table and the version chains. Values are copied out on every read, and
+// their chunk is freed as soon as their version is trimmed.
+//
+// With a [WriteAheadLog], every write is logged before it returns (see
+// [SyncPolicy] for when it's on disk), and the log is replayed when
+// the store is opened again. Once the log fails to write, every later
+// write fails too. The writes that were waiting on it when it failed
+// throw, but stay visible until the store is opened again, when they
+// are gone unless they made it to disk after all.
+class InMemoryStore extends  Store implements VersionedStore {
+	// Marks the slot of a key that was collected, so probing carries on past it.
+	private static final Entry REMOVED = new Entry("", 0);
+
+	private volatile Table table = new Table(16);
+	private final ConcurrentSkipListMap<String, Entry> index = new ConcurrentSkipListMap<>();
+	// Slots in use, and removed ones.
+	private int entries;
+	private int removed;
+	private volatile int size;
+
+	private final ReentrantLock writeLock = new ReentrantLock();
+	// The last version readers can see.
+	private volatile long version;
+
+	// Open snapshots, oldest first.
+	private final ConcurrentSkipListSet<VersionSnapshot> snapshots = new ConcurrentSkipListSet<>();
+	private final AtomicLong snapshotIds = new AtomicLong();
+	// Entries with versions or a tombstone left to collect.
+	private final ArrayDeque<Entry> collectable = new ArrayDeque<>();
+	private long collectedUpTo;
+
+	private final WriteAheadLog log;
+	// Null when values are kept on the heap.
+	private final SlabAllocator slabs;
+
 	public InMemoryStore() {
 		// We can access the private VERSION field.
 		// final var directAccess = Store.VERSION;
-		final var version = new Record().getVersion();
+		final var version = new Record(new byte[0]).getFormatVersion();
+		this.log = null;
+		this.slabs = null;
+	}
+
+	public InMemoryStore(ValueStorage storage) {
+		this.log = null;
+		this.slabs = storage == ValueStorage.OFF_HEAP ? new SlabAllocator() : null;
+	}
+
+	// A durable store: replays the log at [logPath], if there is one,
+	// and then keeps appending every write to it.
+	public InMemoryStore(Path logPath, SyncPolicy policy) throws IOException {
+		this(logPath, policy, ValueStorage.HEAP);
+	}
+
+	public InMemoryStore(Path logPath, SyncPolicy policy, ValueStorage storage) throws IOException {
+		this.log = new WriteAheadLog(logPath, policy);
+		this.slabs = storage == ValueStorage.OFF_HEAP ? new SlabAllocator() : null;
+		this.log.replay((key, value) -> this.commit(key, value == null ? null : new Record(value)));
+	}
+
+	@Override
+	public Record get(String key) {
+		while (true) {
+			final var entry = lookup(this.table, key);
+			if (entry == null) {
+				return null;
+			}
+			final var record = this.read(entry.head);
+			if (record != FREED) {
+				return record;
+			}
+		}
+	}
+
+	@Override
+	public void put(String key, Record record) {
+		final long sequence;
+		this.writeLock.lock();
+		try {
+			// Logged first, a write the log refuses never gets in.
+			sequence = this.logAppend(key, record.getValue());
+			this.commit(key, record);
+		} finally {
+			this.writeLock.unlock();
+		}
+
+		// Waiting for the disk happens outside of the lock, so that
+		// other writers can join the same batch in the meantime.
+		this.awaitLogged(sequence);
+	}
+
+	@Override
+	public boolean delete(String key) {
+		final long sequence;
+		this.writeLock.lock();
+		try {
+			if (this.get(key) == null) {
+				return false;
+			}
+			sequence = this.logAppend(key, null);
+			this.commit(key, null);
+		} finally {
+			this.writeLock.unlock();
+		}
+
+		this.awaitLogged(sequence);
+		return true;
+	}
+
+	// Reads the newest version of every entry. Writes made while it
+	// runs may or may not be seen, but it never takes a lock.
+	@Override
+	public Scan scan(String fromKey, String toKey, boolean descending) {
+		return new IndexScan(range(this.index, fromKey, toKey, descending).values().iterator(), entry -> {
+			while (true) {
+				final var record = this.read(entry.head);
+				if (record != FREED) {
+					return record;
+				}
+			}
+		});
+	}
+
+	// Sees the store as of the last write, for as long as it's open.
+	@Override
+	public Snapshot openSnapshot() {
+		while (true) {
+			final var snapshot = new VersionSnapshot(this.version, this.snapshotIds.incrementAndGet());
+			this.snapshots.add(snapshot);
+
+			// Versions are only trimmed by writers, right after a new one
+			// is published. If none was, any writer trimming next will see
+			// the snapshot, otherwise it may already be too late for it.
+			if (this.version == snapshot.version) {
+				return snapshot;
+			}
+			this.snapshots.remove(snapshot);
+		}
+	}
+
+	@Override
+	public long version() {
+		return this.version;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	// Bytes of native memory taken by values, zero on the heap.
+	public long offHeapBytes() {
+		return this.slabs == null ? 0 : this.slabs.reservedBytes();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (this.log != null) {
+			this.log.close();
+		}
+		if (this.slabs != null) {
+			this.slabs.close();
+		}
+	}
+
+	// Returned by [read] for a version freed while it was read.
+	private static final Record FREED = new Record(new byte[0]);
+
+	// The record of [version], null for a delete.
+	private Record read(Version version) {
+		if (version.chunk < 0) {
+			return version.record;
+		}
+
+		final var value = this.slabs.read(version.chunk, version.size);
+		// The chunk may have been freed and handed to another value while
+		// it was copied. If it wasn't by now, it wasn't during the copy.
+		VarHandle.loadLoadFence();
+		return version.freed ? FREED : new Record(value, version.version);
+	}
+
+	private long logAppend(String key, byte[] value) {
+		if (this.log == null) {
+			return 0;
+		}
+		try {
+			return this.log.append(key, value);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void awaitLogged(long sequence) {
+		if (this.log != null) {
+			try {
+				this.log.await(sequence);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	// Writes a new version of [key], a null [record] deleting it.
+	// Callers hold the write lock.
+	private void commit(String key, Record record) {
+		final var version = this.version + 1;
+
+		final var hash = hash(key);
+		final var slot = find(this.table, key, hash);
+		if (slot < 0 && record == null) {
+			return;
+		}
+		final var entry = slot < 0 ? new Entry(key, hash) : this.table.entries.get(slot);
+		final var previous = entry.head;
+		entry.head = this.newVersion(version, record, previous);
+
+		if (slot < 0) {
+			this.insert(entry);
+		}
+		this.size += (record != null ? 1 : 0) - (previous != null && !previous.isDelete() ? 1 : 0);
+
+		// Only now can snapshots see it (see [openSnapshot]).
+		this.version = version;
+
+		final var horizon = this.horizon();
+		if (this.trim(entry, horizon) && !entry.queued) {
+			entry.queued = true;
+			this.collectable.add(entry);
+		}
+		if (horizon > this.collectedUpTo) {
+			this.collect(horizon);
+		}
+	}
+
+	private Version newVersion(long version, Record record, Version previous) {
+		if (record == null) {
+			return new Version(version, null, -1, 0, previous);
+		}
+
+		final var value = record.getValue();
+		if (this.slabs != null && value.length <= SlabAllocator.SLAB_SIZE) {
+			return new Version(version, null, this.slabs.allocate(value), value.length, previous);
+		}
+		return new Version(version, new Record(value, version), -1, 0, previous);
+	}
+
+	// The oldest version any snapshot may still read.
+	private long horizon() {
+		final var oldest = this.snapshots.isEmpty() ? null : this.snapshots.first();
+		return oldest == null ? this.version : Math.min(oldest.version, this.version);
+	}
+
+	private void collect(long horizon) {
+		for (var i = this.collectable.size(); i > 0; i--) {
+			final var entry = this.collectable.poll();
+			if (this.trim(entry, horizon)) {
+				this.collectable.add(entry);
+			} else {
+				entry.queued = false;
+			}
+		}
+		this.collectedUpTo = horizon;
+	}
+
+	// Drops the versions of [entry] that no snapshot can see anymore: all
+	// but those after [horizon] and the newest one at or before it. An
+	// entry left with only an old tombstone is removed from the table.
+	// Returns whether there's anything left to collect later.
+	private boolean trim(Entry entry, long horizon) {
+		var version = entry.head;
+		while (version.version > horizon && version.previous != null) {
+			version = version.previous;
+		}
+		final var dropped = version.previous;
+		version.previous = null;
+		if (this.slabs != null) {
+			for (var old = dropped; old != null; old = old.previous) {
+				if (old.chunk >= 0) {
+					old.freed = true;
+					this.slabs.free(old.chunk, old.size);
+				}
+			}
+		}
+
+		final var head = entry.head;
+		if (head.isDelete() && head.previous == null && head.version <= horizon) {
+			final var table = this.table;
+			final var slot = find(table, entry.key, entry.hash);
+			if (slot >= 0 && table.entries.get(slot) == entry) {
+				table.entries.set(slot, REMOVED);
+				this.index.remove(entry.key, entry);
+				this.entries--;
+				this.removed++;
+			}
+			return false;
+		}
+		return head.previous != null || head.isDelete();
+	}
+
+	private void insert(Entry entry) {
+		if ((this.entries + this.removed + 1) * 2 > this.table.capacity()) {
+			this.resize(this.entries * 4 > this.table.capacity() ? this.table.capacity() * 2 : this.table.capacity());
+		}
+
+		final var table = this.table;
+		final var mask = table.capacity() - 1;
+		var slot = entry.hash & mask;
+		while (table.entries.get(slot) != null && table.entries.get(slot) != REMOVED) {
+			slot = (slot + 1) & mask;
+		}
+		if (table.entries.get(slot) == REMOVED) {
+			this.removed--;
+		}
+
+		// The hash first: the volatile write of the entry publishes it.
+		table.hashes[slot] = entry.hash;
+		table.entries.set(slot, entry);
+		this.index.put(entry.key, entry);
+		this.entries++;
+	}
+
+	private void resize(int capacity) {
+		final var old = this.table;
+		final var resized = new Table(capacity);
+
+		final var mask = capacity - 1;
+		for (var i = 0; i < old.capacity(); i++) {
+			final var entry = old.entries.get(i);
+			if (entry != null && entry != REMOVED) {
+				var slot = entry.hash & mask;
+				while (resized.entries.get(slot) != null) {
+					slot = (slot + 1) & mask;
+				}
+				resized.hashes[slot] = entry.hash;
+				resized.entries.set(slot, entry);
+			}
+		}
+
+		this.table = resized;
+		this.removed = 0;
+	}
+
+	// For readers, who may find the slot of the entry removed
+	// right after they found it.
+	private static Entry lookup(Table table, String key) {
+		final var hash = hash(key);
+		final var mask = table.capacity() - 1;
+		for (var slot = hash & mask; ; slot = (slot + 1) & mask) {
+			final var entry = table.entries.get(slot);
+			if (entry == null) {
+				return null;
+			}
+			if (entry != REMOVED && table.hashes[slot] == hash && entry.key.equals(key)) {
+				return entry;
+			}
+		}
+	}
+
+	// Most probes only touch the int array of hashes, a key
+	// is only compared when its hash matches.
+	private static int find(Table table, String key, int hash) {
+		final var mask = table.capacity() - 1;
+		for (var slot = hash & mask; ; slot = (slot + 1) & mask) {
+			final var entry = table.entries.get(slot);
+			if (entry == null) {
+				return -1;
+			}
+			if (entry != REMOVED && table.hashes[slot] == hash && entry.key.equals(key)) {
+				return slot;
+			}
+		}
+	}
+
+	// [String.hashCode] is cached in the string, spreading
+	// it makes sequential keys land far apart.
+	private static int hash(String key) {
+		final var hash = key.hashCode() * 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	private static final class Table {
+		final AtomicReferenceArray<Entry> entries;
+		final int[] hashes;
+
+		Table(int capacity) {
+			this.entries = new AtomicReferenceArray<>(capacity);
+			this.hashes = new int[capacity];
+		}
+
+		int capacity() {
+			return this.hashes.length;
+		}
+	}
+
+	private static final class Entry {
+		final String key;
+		final int hash;
+		volatile Version head;
+		// Whether it's in [collectable], only used by writers.
+		boolean queued;
+
+		Entry(String key, int hash) {
+			this.key = key;
+			this.hash = hash;
+		}
+
+		// The newest version at or before [version], or null.
+		Version at(long version) {
+			var node = this.head;
+			while (node != null && node.version > version) {
+				node = node.previous;
+			}
+			return node;
+		}
+	}
+
+	// The value is either in [record], or in the [chunk] of the
+	// store's slabs. With neither, it's a delete.
+	private static final class Version {
+		final long version;
+		final Record record;
+		final long chunk;
+		final int size;
+		volatile Version previous;
+		// Set before the chunk is freed, so readers can tell.
+		volatile boolean freed;
+
+		Version(long version, Record record, long chunk, int size, Version previous) {
+			this.version = version;
+			this.record = record;
+			this.chunk = chunk;
+			this.size = size;
+			this.previous = previous;
+		}
+
+		boolean isDelete() {
+			return this.record == null && this.chunk < 0;
+		}
+	}
+
+	private final class VersionSnapshot implements Snapshot, Comparable<VersionSnapshot> {
+		private final long version;
+		private final long id;
+		private volatile boolean closed;
+
+		VersionSnapshot(long version, long id) {
+			this.version = version;
+			this.id = id;
+		}
+
+		@Override
+		public long getVersion() {
+			return this.version;
+		}
+
+		@Override
+		public Record get(String key) {
+			this.checkOpen();
+			final var entry = lookup(InMemoryStore.this.table, key);
+			return entry == null ? null : this.read(entry);
+		}
+
+		// Entries added after it was opened are newer than the
+		// snapshot, and the ones removed are older, so whatever
+		// the writers do, the table read here has all it needs.
+		@Override
+		public void forEach(BiConsumer<String, Record> action) {
+			this.checkOpen();
+			final var table = InMemoryStore.this.table;
+			for (var slot = 0; slot < table.capacity(); slot++) {
+				final var entry = table.entries.get(slot);
+				if (entry != null && entry != REMOVED) {
+					final var record = this.read(entry);
+					if (record != null) {
+						action.accept(entry.key, record);
+					}
+				}
+			}
+		}
+
+		@Override
+		public Scan scan(String fromKey, String toKey, boolean descending) {
+			this.checkOpen();
+			return new IndexScan(range(InMemoryStore.this.index, fromKey, toKey, descending).values().iterator(), this::read);
+		}
+
+		// The versions it sees are never freed while it's open,
+		// but the newest one of [entry] may not be one of them.
+		private Record read(Entry entry) {
+			while (true) {
+				final var version = entry.at(this.version);
+				if (version == null) {
+					return null;
+				}
+				final var record = InMemoryStore.this.read(version);
+				if (record != FREED) {
+					return record;
+				}
+			}
+		}
+
+		@Override
+		public void close() {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			InMemoryStore.this.snapshots.remove(this);
+
+			// The versions it kept are collected by the next write,
+			// or right away if no writer is busy.
+			if (InMemoryStore.this.writeLock.tryLock()) {
+				try {
+					final var horizon = InMemoryStore.this.horizon();
+					if (horizon > InMemoryStore.this.collectedUpTo) {
+						InMemoryStore.this.collect(horizon);
+					}
+				} finally {
+					InMemoryStore.this.writeLock.unlock();
+				}
+			}
+		}
+
+		@Override
+		public int compareTo(VersionSnapshot other) {
+			final var byVersion = Long.compare(this.version, other.version);
+			return byVersion != 0 ? byVersion : Long.compare(this.id, other.id);
+		}
+
+		private void checkOpen() {
+			if (this.closed) {
+				throw new IllegalStateException("The snapshot is closed.");
+			}
+		}
+	}
+
+	// Walks entries of the index, skipping those [reader] finds deleted.
+	private static final class IndexScan implements Scan {
+		private final Iterator<Entry> entries;
+		private final Function<Entry, Record> reader;
+		private Map.Entry<String, Record> next;
+
+		IndexScan(Iterator<Entry> entries, Function<Entry, Record> reader) {
+			this.entries = entries;
+			this.reader = reader;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (this.next == null && this.entries.hasNext()) {
+				final var entry = this.entries.next();
+				final var record = this.reader.apply(entry);
+				if (record != null) {
+					this.next = Map.entry(entry.key, record);
+				}
+			}
+			return this.next != null;
+		}
+
+		@Override
+		public Map.Entry<String, Record> next() {
+			if (!this.hasNext()) {
+				throw new NoSuchElementException();
+			}
+			final var next = this.next;
+			this.next = null;
+			return next;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
+
+// Where an [InMemoryStore] keeps the bytes of its values.
+enum ValueStorage {
+	// In their records, on the heap.
+	HEAP,
+	// In native memory, invisible to the garbage collector.
+	OFF_HEAP
+}
+
+// Hands out chunks of native memory for values, carved out of slabs of
+// [SLAB_SIZE] bytes allocated from a shared [Arena]. Chunks come in
+// power-of-two size classes from [MIN_CHUNK] bytes up to a whole slab,
+// and every class keeps a stack of freed chunks to reuse before
+// carving new ones. Slabs are only released with the allocator.
+//
+// A chunk is named by a long: the slab index in the high bits and the
+// offset in the slab in the low ones.
+//
+// [allocate] and [free] must be called by one thread at a time, [read]
+// by any thread, but only makes sense for chunks that weren't freed.
+final class SlabAllocator implements AutoCloseable {
+	static final int SLAB_SIZE = 1 << 20;
+	static final int MIN_CHUNK = 16;
+	private static final int OFFSET_BITS = Integer.numberOfTrailingZeros(SLAB_SIZE);
+	private static final int CLASSES = OFFSET_BITS - Integer.numberOfTrailingZeros(MIN_CHUNK) + 1;
+
+	private final Arena arena = Arena.ofShared();
+	// Replaced when it grows, so readers never see it half copied.
+	private volatile MemorySegment[] slabs = new MemorySegment[8];
+	private int slabCount;
+
+	// Freed chunks of every class, and the slab each class carves from.
+	private final long[][] free = new long[CLASSES][];
+	private final int[] freeCount = new int[CLASSES];
+	private final long[] carving = new long[CLASSES];
+
+	SlabAllocator() {
+		Arrays.fill(this.carving, -1);
+		for (var i = 0; i < CLASSES; i++) {
+			this.free[i] = new long[16];
+		}
+	}
+
+	// Copies [value] into a new chunk, and returns it.
+	long allocate(byte[] value) {
+		final var sizeClass = sizeClass(value.length);
+		final long chunk;
+		if (this.freeCount[sizeClass] > 0) {
+			chunk = this.free[sizeClass][--this.freeCount[sizeClass]];
+		} else {
+			chunk = this.carve(sizeClass);
+		}
+
+		MemorySegment.copy(value, 0, this.slabs[(int) (chunk >>> OFFSET_BITS)], ValueLayout.JAVA_BYTE, chunk & (SLAB_SIZE - 1), value.length);
+		return chunk;
+	}
+
+	// [size] is the size of the value it was allocated for.
+	void free(long chunk, int size) {
+		final var sizeClass = sizeClass(size);
+		if (this.freeCount[sizeClass] == this.free[sizeClass].length) {
+			this.free[sizeClass] = Arrays.copyOf(this.free[sizeClass], this.free[sizeClass].length * 2);
+		}
+		this.free[sizeClass][this.freeCount[sizeClass]++] = chunk;
+	}
+
+	byte[] read(long chunk, int size) {
+		final var value = new byte[size];
+		MemorySegment.copy(this.slabs[(int) (chunk >>> OFFSET_BITS)], ValueLayout.JAVA_BYTE, chunk & (SLAB_SIZE - 1), value, 0, size);
+		return value;
+	}
+
+	long reservedBytes() {
+		return (long) this.slabCount * SLAB_SIZE;
+	}
+
+	@Override
+	public void close() {
+		this.arena.close();
+	}
+
+	private long carve(int sizeClass) {
+		final var chunkSize = MIN_CHUNK << sizeClass;
+		var chunk = this.carving[sizeClass];
+		if (chunk < 0 || (chunk & (SLAB_SIZE - 1)) + chunkSize > SLAB_SIZE) {
+			chunk = (long) this.newSlab() << OFFSET_BITS;
+		}
+		final var next = chunk + chunkSize;
+		this.carving[sizeClass] = (next & (SLAB_SIZE - 1)) == 0 ? -1 : next;
+		return chunk;
+	}
+
+	private int newSlab() {
+		if (this.slabCount == this.slabs.length) {
+			this.slabs = Arrays.copyOf(this.slabs, this.slabs.length * 2);
+		}
+		this.slabs[this.slabCount] = this.arena.allocate(SLAB_SIZE, Long.BYTES);
+		return this.slabCount++;
+	}
+
+	private static int sizeClass(int size) {
+		final var chunkSize = Math.max(MIN_CHUNK, size);
+		// The smallest power of two that holds it, counted from [MIN_CHUNK].
+		return Integer.SIZE - Integer.numberOfLeadingZeros(chunkSize - 1) - Integer.numberOfTrailingZeros(MIN_CHUNK);
+	}
+}
+
+// When the writes of a [WriteAheadLog] are forced to disk.
+record SyncPolicy(Mode mode, Duration interval) {
+	enum Mode {
+		// Every write waits until it's on disk. Writers that arrive
+		// together share a single write and force (group commit).
+		EVERY_WRITE,
+		// Writes return right away, and a background thread forces
+		// them to disk every [interval]. A crash loses at most that much.
+		INTERVAL,
+		// Writes are handed to the operating system before returning, but
+		// never forced. They survive the process crashing, not the machine.
+		NEVER
+	}
+
+	static SyncPolicy everyWrite() {
+		return new SyncPolicy(Mode.EVERY_WRITE, Duration.ZERO);
+	}
+
+	static SyncPolicy every(Duration interval) {
+		return new SyncPolicy(Mode.INTERVAL, interval);
+	}
+
+	static SyncPolicy never() {
+		return new SyncPolicy(Mode.NEVER, Duration.ZERO);
+	}
+}
+
+// An append-only log of the writes made to a store.
+//
+// Every entry is laid out as:
+//
+//   int    size of the body
+//   int    CRC32 of the body
+//   body:  int key size, key in UTF-8, int value size (-1 for a delete), value
+//
+// Appending only copies the entry into the pending batch. Writers then
+// call [await], and the first one to get there becomes the leader: it
+// takes the whole pending batch, writes it with a single
+// [FileChannel.write] (and force), and wakes up everyone it covered.
+// Writers arriving while it's busy make up the next batch, so under load
+// the cost of a force is shared by many writes.
+final class WriteAheadLog implements AutoCloseable {
+	private final FileChannel channel;
+	private final SyncPolicy policy;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition flushed = this.lock.newCondition();
+
+	// Entries waiting to be written, and the spare buffer they are
+	// swapped with while the leader writes them out.
+	private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+	private ByteBuffer spare = ByteBuffer.allocate(1 << 16);
+
+	// Sequence numbers of the last appended and last flushed entries.
+	private long appended;
+	private long durable;
+	private boolean flushing;
+
+	// Once a batch fails to be written, nothing after it can be
+	// trusted, so every later flush fails the same way.
+	private IOException failure;
+
+	private final Thread syncer;
+	private volatile boolean closed;
+
+	WriteAheadLog(Path path, SyncPolicy policy) throws IOException {
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.policy = policy;
+
+		if (policy.mode() == SyncPolicy.Mode.INTERVAL) {
+			this.syncer = new Thread(this::syncPeriodically, "wal-sync");
+			this.syncer.setDaemon(true);
+			this.syncer.start();
+		} else {
+			this.syncer = null;
+		}
+	}
+
+	// Reads the log from the start, passing every complete entry to
+	// [action] (with a null value for deletes). The log is cut right
+	// after the last complete entry, dropping anything a crash left
+	// half written.
+	void replay(BiConsumer<String, byte[]> action) throws IOException {
+		final var input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(this.channel.position(0)), 1 << 16));
+		final var crc = new CRC32();
+		var valid = 0L;
+
+		while (true) {
+			final byte[] body;
+			final int checksum;
+			try {
+				final var size = input.readInt();
+				checksum = input.readInt();
+				if (size < 0 || size > this.channel.size() - valid) {
+					break;
+				}
+				body = input.readNBytes(size);
+				if (body.length < size) {
+					break;
+				}
+			} catch (EOFException e) {
+				break;
+			}
+
+			crc.reset();
+			crc.update(body);
+			if ((int) crc.getValue() != checksum) {
+				break;
+			}
+
+			final var entry = ByteBuffer.wrap(body);
+			final var key = new byte[entry.getInt()];
+			entry.get(key);
+			final var valueSize = entry.getInt();
+			final var value = valueSize < 0 ? null : new byte[valueSize];
+			if (value != null) {
+				entry.get(value);
+			}
+
+			action.accept(new String(key, StandardCharsets.UTF_8), value);
+			valid += 2 * Integer.BYTES + body.length;
+		}
+
+		this.channel.truncate(valid);
+		this.channel.position(valid);
+	}
+
+	// Adds an entry to the pending batch and returns its sequence
+	// number, to be passed to [await]. A null value is a delete.
+	// Fails once a batch failed to be written.
+	long append(String key, byte[] value) throws IOException {
+		final var keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		final var bodySize = Integer.BYTES + keyBytes.length + Integer.BYTES + (value == null ? 0 : value.length);
+
+		final var crc = new CRC32();
+		final var body = ByteBuffer.allocate(bodySize)
+			.putInt(keyBytes.length)
+			.put(keyBytes)
+			.putInt(value == null ? -1 : value.length);
+		if (value != null) {
+			body.put(value);
+		}
+		crc.update(body.array());
+
+		this.lock.lock();
+		try {
+			if (this.closed) {
+				throw new IllegalStateException("The log is closed.");
+			}
+			this.checkFailure();
+			if (this.pending.remaining() < 2 * Integer.BYTES + bodySize) {
+				this.pending = grow(this.pending, 2 * Integer.BYTES + bodySize);
+			}
+			this.pending.putInt(bodySize).putInt((int) crc.getValue()).put(body.array());
+			return ++this.appended;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Returns once the entry is as safe as the [SyncPolicy] promises.
+	void await(long sequence) throws IOException {
+		switch (this.policy.mode()) {
+			case EVERY_WRITE -> this.flush(sequence, true);
+			case NEVER -> this.flush(sequence, false);
+			// The background thread takes care of it, but if it
+			// failed, nothing gets to disk anymore.
+			case INTERVAL -> {
+				this.lock.lock();
+				try {
+					this.checkFailure();
+				} finally {
+					this.lock.unlock();
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.closed = true;
+		if (this.syncer != null) {
+			// Not interrupt: that would close the channel under its feet.
+			LockSupport.unpark(this.syncer);
+			try {
+				this.syncer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		this.flush(this.appended(), this.policy.mode() != SyncPolicy.Mode.NEVER);
+		this.channel.close();
+	}
+
+	// Group commit: returns once [sequence] has been written out,
+	// either by this thread or by another leader.
+	private void flush(long sequence, boolean force) throws IOException {
+		this.lock.lock();
+		try {
+			while (this.durable < sequence) {
+				this.checkFailure();
+				if (this.flushing) {
+					this.flushed.awaitUninterruptibly();
+					continue;
+				}
+
+				// Become the leader for everything pending right now.
+				this.flushing = true;
+				final var batch = this.pending.flip();
+				final var batchEnd = this.appended;
+				this.pending = this.spare;
+				this.spare = null;
+
+				this.lock.unlock();
+				IOException error = null;
+				try {
+					while (batch.hasRemaining()) {
+						this.channel.write(batch);
+					}
+					if (force) {
+						this.channel.force(false);
+					}
+				} catch (IOException e) {
+					error = e;
+				} finally {
+					this.lock.lock();
+				}
+
+				this.flushing = false;
+				this.spare = batch.clear();
+				if (error == null) {
+					this.durable = batchEnd;
+				} else {
+					this.failure = error;
+				}
+				this.flushed.signalAll();
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private void syncPeriodically() {
+		while (!this.closed) {
+			LockSupport.parkNanos(this.policy.interval().toNanos());
+			try {
+				this.flush(this.appended(), true);
+			} catch (IOException e) {
+				// Recorded in [failure], writers get it from [append] and [await].
+				return;
+			}
+		}
+	}
+
+	// Callers hold the lock.
+	private void checkFailure() throws IOException {
+		if (this.failure != null) {
+			throw new IOException("The log failed to write an earlier batch.", this.failure);
+		}
+	}
+
+	private long appended() {
+		this.lock.lock();
+		try {
+			return this.appended;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+		final var grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+		return grown.put(buffer.flip());
+	}
+}
+
+// Tunables of an [LsmStore].
+//
+// - [memtableBytes]: how much the memtable holds before it's flushed.
+// - [compactionFanIn]: how many segments of similar size are merged at once.
+// - [compactionBytesPerSecond]: how fast compaction may write, so it
+//   never takes the disk away from the writers.
+// - [bloomBitsPerKey]: the size of the [BloomFilter] of every segment,
+//   10 bits per key let through about 1% of the keys it doesn't hold,
+//   and every 5 more divide that by ten. Zero leaves filters out.
+record LsmOptions(long memtableBytes, int compactionFanIn, long compactionBytesPerSecond, int bloomBitsPerKey, SyncPolicy syncPolicy) {
+	static LsmOptions defaults() {
+		return new LsmOptions(64L << 20, 4, 32L << 20, 10, SyncPolicy.everyWrite());
+	}
+}
+
+// A store that can grow past memory: a log-structured merge tree.
+//
+// Writes go to a sorted in-memory memtable, backed by a [WriteAheadLog].
+// Once the memtable is full it's frozen, a new one takes its place, and a
+// background thread writes the frozen one out as an immutable sorted
+// [Segment] file. Another one merges runs of [LsmOptions.compactionFanIn]
+// segments of similar size into one (size-tiered compaction), at a
+// limited rate, so the number of files stays small while writers carry
+// on at the speed of the memtable. Flushes never wait for compaction,
+// which is what writers may end up waiting for.
+//
+// Reads look at the memtable, then the frozen memtable, then the
+// segments from newest to oldest, and stop at the first hit. Segments
+// whose Bloom filter rules the key out are skipped without reading
+// anything from disk, so looking up a missing key mostly stays in
+// memory (see [filterStats] for how well that works). Deletes are
+// written as tombstones that shadow older values, and only dropped once
+// they are merged into the oldest segment.
+//
+// The directory holds a `MANIFEST` listing the live segments (newest
+// first) and the first live log, which is the only state that needs to
+// be read on startup.
+//
+// [scan] merges the memtables and the segments the same way compaction
+// does, reading segments in large chunks, and keeps the segments it
+// reads from being deleted until it's closed.
+class LsmStore extends Store {
+	// Value of a deleted key in memtables and segments. Compared by identity.
+	static final byte[] DELETED = new byte[0];
+
+	// Segments, the temporary files they are written to, and logs.
+	private static final Pattern FILE_NAME = Pattern.compile("(\\d{1,18})\\.(segment|segment\\.tmp|log)");
+
+	private final Path directory;
+	private final LsmOptions options;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = this.lock.newCondition();
+
+	private volatile Memtable memtable;
+	// Being written out to a segment, or null.
+	private volatile Memtable frozen;
+	// Newest first, replaced as a whole on every change.
+	private volatile List<Segment> segments;
+	private long nextFileNumber;
+
+	private final Thread flusher;
+	private final Thread compactor;
+	private volatile boolean closed;
+	private IOException maintenanceFailure;
+
+	private final LongAdder filterSkips = new LongAdder();
+	private final LongAdder filterFalsePositives = new LongAdder();
+
+	public LsmStore(Path directory, LsmOptions options) throws IOException {
+		this.directory = directory;
+		this.options = options;
+		Files.createDirectories(directory);
+
+		// What the manifest lists is live, everything else is the leftover
+		// of a flush or compaction that didn't finish.
+		var firstLog = 0L;
+		final var live = new ArrayList<Segment>();
+		final var manifest = directory.resolve("MANIFEST");
+		if (Files.exists(manifest)) {
+			for (final var line : Files.readAllLines(manifest)) {
+				final var parts = line.split(" ");
+				switch (parts[0]) {
+					case "log" -> firstLog = Long.parseLong(parts[1]);
+					case "segment" -> live.add(Segment.open(directory.resolve(parts[1])));
+					default -> throw new IOException(STR."Corrupt manifest line: \{line}");
+				}
+			}
+		}
+		this.segments = List.copyOf(live);
+
+		// Only names the store gives its own files are looked at, anything
+		// else in the directory is left alone.
+		final var logs = new ArrayList<Long>();
+		try (final var files = Files.list(directory)) {
+			for (final var file : files.toList()) {
+				final var name = file.getFileName().toString();
+				if (name.equals("MANIFEST.tmp")) {
+					Files.delete(file);
+					continue;
+				}
+
+				final var match = FILE_NAME.matcher(name);
+				if (!match.matches()) {
+					continue;
+				}
+				final var number = Long.parseLong(match.group(1));
+				this.nextFileNumber = Math.max(this.nextFileNumber, number + 1);
+
+				if (name.endsWith(".log") && number >= firstLog) {
+					logs.add(number);
+				} else if (live.stream().noneMatch(segment -> segment.path().equals(file))) {
+					Files.delete(file);
+				}
+			}
+		}
+
+		// Recovery: replay the logs, oldest first, and write what they held
+		// straight to a segment, so the store starts with an empty memtable.
+		logs.sort(null);
+		final var recovered = new Memtable(null, 0);
+		for (final var number : logs) {
+			try (final var log = new WriteAheadLog(this.logPath(number), SyncPolicy.never())) {
+				log.replay((key, value) -> recovered.put(key, value == null ? DELETED : value));
+			}
+		}
+		if (!recovered.entries.isEmpty()) {
+			this.flush(recovered);
+		}
+		this.memtable = this.newMemtable();
+		this.writeManifest(this.segments, this.memtable.number);
+		for (final var number : logs) {
+			Files.delete(this.logPath(number));
+		}
+
+		this.flusher = new Thread(this::flushFrozen, "lsm-flush");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+		this.compactor = new Thread(this::compactRuns, "lsm-compaction");
+		this.compactor.setDaemon(true);
+		this.compactor.start();
+	}
+
+	@Override
+	public Record get(String key) {
+		final var value = this.find(key);
+		return value == null || value == DELETED ? null : new Record(value);
+	}
+
+	@Override
+	public void put(String key, Record record) {
+		this.write(key, record.getValue());
+	}
+
+	@Override
+	public boolean delete(String key) {
+		if (!this.contains(key)) {
+			return false;
+		}
+		this.write(key, DELETED);
+		return true;
+	}
+
+	@Override
+	public Scan scan(String fromKey, String toKey, boolean descending) {
+		while (true) {
+			final var sources = new ArrayList<EntryCursor>();
+			sources.add(new MapCursor(range(this.memtable.entries, fromKey, toKey, descending)));
+			final var frozen = this.frozen;
+			if (frozen != null) {
+				sources.add(new MapCursor(range(frozen.entries, fromKey, toKey, descending)));
+			}
+
+			final var segments = this.segments;
+			final var pinned = new ArrayList<Segment>();
+			for (final var segment : segments) {
+				if (!segment.acquire()) {
+					break;
+				}
+				pinned.add(segment);
+				sources.add(descending ? segment.reverseCursor(toKey) : segment.cursor(fromKey));
+			}
+
+			if (pinned.size() == segments.size()) {
+				try {
+					return new MergedScan(new MergingCursor(sources, descending), fromKey, toKey, descending, pinned);
+				} catch (IOException e) {
+					release(pinned);
+					throw new UncheckedIOException(e);
+				}
+			}
+			// A compaction retired one of them, the new list has the same data.
+			release(pinned);
+		}
+	}
+
+	public int segmentCount() {
+		return this.segments.size();
+	}
+
+	public FilterStats filterStats() {
+		return new FilterStats(this.filterSkips.sum(), this.filterFalsePositives.sum());
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.lock.lock();
+		try {
+			this.closed = true;
+			this.changed.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+
+		// The flusher writes out the frozen memtable, if there's one,
+		// and a compaction in progress gives up.
+		try {
+			this.flusher.join();
+			this.compactor.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		this.memtable.log.close();
+		for (final var segment : this.segments) {
+			segment.close();
+		}
+	}
+
+	private byte[] find(String key) {
+		while (true) {
+			// In this order: a memtable only ever moves from [memtable]
+			// to [frozen] and from [frozen] to [segments].
+			if (this.closed) {
+				throw new IllegalStateException("The store is closed.");
+			}
+			var value = this.memtable.entries.get(key);
+			if (value != null) {
+				return value;
+			}
+
+			final var frozen = this.frozen;
+			if (frozen != null) {
+				value = frozen.entries.get(key);
+				if (value != null) {
+					return value;
+				}
+			}
+
+			final var segments = this.segments;
+			try {
+				for (final var segment : segments) {
+					if (!segment.mightContain(key)) {
+						this.filterSkips.increment();
+						continue;
+					}
+					value = segment.get(key);
+					if (value != null) {
+						return value;
+					}
+					this.filterFalsePositives.increment();
+				}
+				return null;
+			} catch (ClosedByInterruptException e) {
+				throw new UncheckedIOException("Interrupted while reading a segment.", e);
+			} catch (ClosedChannelException e) {
+				// Released: either a compaction replaced the segment while
+				// we were reading it, and the new list has the same data,
+				// or the store was closed.
+				if (this.segments == segments && !this.closed) {
+					throw new UncheckedIOException(e);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	private void write(String key, byte[] value) {
+		final Memtable target;
+		final long sequence;
+
+		this.lock.lock();
+		try {
+			if (this.closed) {
+				throw new IllegalStateException("The store is closed.");
+			}
+			if (this.maintenanceFailure != null) {
+				throw new UncheckedIOException("The store failed to write a segment.", this.maintenanceFailure);
+			}
+
+			if (this.memtable.bytes >= this.options.memtableBytes()) {
+				// Only one memtable can be frozen at a time: if the last one
+				// is still being written out, writers have to wait for it.
+				while (this.frozen != null && this.maintenanceFailure == null) {
+					this.changed.awaitUninterruptibly();
+				}
+				if (this.maintenanceFailure != null) {
+					throw new UncheckedIOException("The store failed to write a segment.", this.maintenanceFailure);
+				}
+				this.frozen = this.memtable;
+				this.memtable = this.newMemtable();
+				this.changed.signalAll();
+			}
+
+			target = this.memtable;
+			sequence = target.log.append(key, value == DELETED ? null : value);
+			target.put(key, value);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			this.lock.unlock();
+		}
+
+		try {
+			target.log.await(sequence);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// The flush thread: writes out every memtable that gets frozen.
+	private void flushFrozen() {
+		while (true) {
+			final Memtable frozen;
+			this.lock.lock();
+			try {
+				while (!this.closed && this.frozen == null && this.maintenanceFailure == null) {
+					this.changed.awaitUninterruptibly();
+				}
+				if (this.frozen == null || this.maintenanceFailure != null) {
+					return;
+				}
+				frozen = this.frozen;
+			} finally {
+				this.lock.unlock();
+			}
+
+			try {
+				this.flush(frozen);
+			} catch (IOException e) {
+				this.fail(e);
+				return;
+			}
+		}
+	}
+
+	// The compaction thread: merges runs of segments, as long as there are.
+	private void compactRuns() {
+		while (true) {
+			final List<Segment> run;
+			this.lock.lock();
+			try {
+				while (!this.closed && this.compactionRun() == null && this.maintenanceFailure == null) {
+					this.changed.awaitUninterruptibly();
+				}
+				if (this.closed || this.maintenanceFailure != null) {
+					return;
+				}
+				run = this.compactionRun();
+			} finally {
+				this.lock.unlock();
+			}
+
+			try {
+				this.compact(run);
+			} catch (IOException e) {
+				this.fail(e);
+				return;
+			}
+		}
+	}
+
+	private void fail(IOException failure) {
+		this.lock.lock();
+		try {
+			this.maintenanceFailure = failure;
+			this.changed.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Writes a memtable out as the newest segment, then drops its log.
+	private void flush(Memtable memtable) throws IOException {
+		// With nothing older to shadow, tombstones can go right away.
+		final var keepTombstones = !this.segments.isEmpty();
+		final var writer = new SegmentWriter(this.directory.resolve(STR."\{this.newFileNumber()}.segment"), memtable.entries.size(), this.options.bloomBitsPerKey(), null);
+		for (final var entry : memtable.entries.entrySet()) {
+			if (keepTombstones || entry.getValue() != DELETED) {
+				writer.add(entry.getKey(), entry.getValue());
+			}
+		}
+		final var segment = writer.finish();
+
+		this.lock.lock();
+		try {
+			final var segments = new ArrayList<Segment>();
+			segments.add(segment);
+			segments.addAll(this.segments);
+
+			if (memtable.log != null) {
+				this.writeManifest(segments, this.memtable.number);
+			}
+			this.segments = List.copyOf(segments);
+			if (this.frozen == memtable) {
+				this.frozen = null;
+			}
+			this.changed.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+
+		if (memtable.log != null) {
+			memtable.log.close();
+			Files.delete(this.logPath(memtable.number));
+		}
+	}
+
+	// The newest [LsmOptions.compactionFanIn] segments in a row whose sizes
+	// are within a factor of four of each other, or null if there are none.
+	private List<Segment> compactionRun() {
+		final var segments = this.segments;
+		final var fanIn = this.options.compactionFanIn();
+
+		for (var start = 0; start + fanIn <= segments.size(); start++) {
+			final var run = segments.subList(start, start + fanIn);
+			final var smallest = run.stream().mapToLong(Segment::size).min().orElseThrow();
+			final var largest = run.stream().mapToLong(Segment::size).max().orElseThrow();
+			if (largest <= 4 * Math.max(smallest, 1)) {
+				return run;
+			}
+		}
+		return null;
+	}
+
+	// Merges a run of consecutive segments into a single one that takes
+	// their place, keeping only the newest value of every key.
+	private void compact(List<Segment> run) throws IOException {
+		final var includesOldest = run.get(run.size() - 1) == this.segments.get(this.segments.size() - 1);
+		final var limiter = new RateLimiter(this.options.compactionBytesPerSecond());
+		final var expectedKeys = run.stream().mapToLong(Segment::entryCount).sum();
+		final var writer = new SegmentWriter(this.directory.resolve(STR."\{this.newFileNumber()}.segment"), expectedKeys, this.options.bloomBitsPerKey(), limiter);
+
+		final var merge = new MergingCursor(run.stream().<EntryCursor>map(segment -> segment.cursor(null)).toList(), false);
+		while (merge.next()) {
+			if (this.closed) {
+				// Rate limited, it could take a while to finish.
+				writer.abort();
+				return;
+			}
+			if (!includesOldest || merge.value() != DELETED) {
+				writer.add(merge.key(), merge.value());
+			}
+		}
+		final var merged = writer.finish();
+
+		this.lock.lock();
+		try {
+			final var segments = new ArrayList<>(this.segments);
+			final var start = segments.indexOf(run.get(0));
+			segments.subList(start, start + run.size()).clear();
+			segments.add(start, merged);
+
+			this.writeManifest(segments, this.memtable.number);
+			this.segments = List.copyOf(segments);
+		} finally {
+			this.lock.unlock();
+		}
+
+		for (final var segment : run) {
+			segment.retire();
+		}
+	}
+
+	private Memtable newMemtable() throws IOException {
+		final var number = this.newFileNumber();
+		return new Memtable(new WriteAheadLog(this.logPath(number), this.options.syncPolicy()), number);
+	}
+
+	private long newFileNumber() {
+		this.lock.lock();
+		try {
+			return this.nextFileNumber++;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private Path logPath(long number) {
+		return this.directory.resolve(STR."\{number}.log");
+	}
+
+	// Replaced atomically, so it always describes a complete state.
+	private void writeManifest(List<Segment> segments, long firstLog) throws IOException {
+		final var lines = new ArrayList<String>();
+		lines.add(STR."log \{firstLog}");
+		for (final var segment : segments) {
+			lines.add(STR."segment \{segment.path().getFileName()}");
+		}
+
+		final var temporary = this.directory.resolve("MANIFEST.tmp");
+		Files.write(temporary, lines);
+		try (final var channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+		Files.move(temporary, this.directory.resolve("MANIFEST"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void release(List<Segment> segments) {
+		for (final var segment : segments) {
+			try {
+				segment.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+
+	// Sorted, so it can be written out in order as it is.
+	private static final class Memtable {
+		final ConcurrentSkipListMap<String, byte[]> entries = new ConcurrentSkipListMap<>();
+		final WriteAheadLog log;
+		final long number;
+		// Rough size on the heap, only updated under the store lock.
+		long bytes;
+
+		Memtable(WriteAheadLog log, long number) {
+			this.log = log;
+			this.number = number;
+		}
+
+		void put(String key, byte[] value) {
+			this.entries.put(key, value);
+			this.bytes += 64 + 2L * key.length() + value.length;
+		}
+	}
+
+	// Cuts the merged entries down to the range, and drops tombstones.
+	private static final class MergedScan implements Scan {
+		private final MergingCursor merge;
+		private final String fromKey;
+		private final String toKey;
+		private final boolean descending;
+		private List<Segment> pinned;
+		private Map.Entry<String, Record> next;
+
+		MergedScan(MergingCursor merge, String fromKey, String toKey, boolean descending, List<Segment> pinned) {
+			this.merge = merge;
+			this.fromKey = fromKey;
+			this.toKey = toKey;
+			this.descending = descending;
+			this.pinned = pinned;
+		}
+
+		@Override
+		public boolean hasNext() {
+			try {
+				while (this.next == null && this.pinned != null) {
+					if (!this.merge.next()) {
+						this.close();
+						break;
+					}
+
+					final var key = this.merge.key();
+					// Segments start at the block the range starts in,
+					// so the first few keys may be out of it.
+					final var beforeFrom = this.fromKey != null && key.compareTo(this.fromKey) < 0;
+					final var afterTo = this.toKey != null && key.compareTo(this.toKey) >= 0;
+					if (this.descending ? beforeFrom : afterTo) {
+						this.close();
+					} else if (!(this.descending ? afterTo : beforeFrom) && this.merge.value() != DELETED) {
+						this.next = Map.entry(key, new Record(this.merge.value()));
+					}
+				}
+			} catch (IOException e) {
+				this.close();
+				throw new UncheckedIOException(e);
+			}
+			return this.next != null;
+		}
+
+		@Override
+		public Map.Entry<String, Record> next() {
+			if (!this.hasNext()) {
+				throw new NoSuchElementException();
+			}
+			final var next = this.next;
+			this.next = null;
+			return next;
+		}
+
+		@Override
+		public void close() {
+			if (this.pinned != null) {
+				release(this.pinned);
+				this.pinned = null;
+			}
+		}
+	}
+}
+
+// An immutable file of entries sorted by key, written by [SegmentWriter]:
+//
+//   entries: int key size, key in UTF-8, int value size (-1 for a tombstone), value
+//   filter:  the words of a [BloomFilter] over the keys
+//   index:   int count, then for every block: int key size, first key, long offset
+//   footer:  long filter offset, int filter hashes, long index offset, long entry count, int magic
+//
+// Entries are grouped in blocks of about [SegmentWriter.BLOCK_SIZE]
+// bytes, and only the first key of every block is kept in memory, so a
+// lookup is a binary search in memory followed by reading one block.
+// Reads are positional, so any number of threads can read at once.
+//
+// The filter is mapped rather than read, so the operating system
+// keeps the filters of the segments in use in memory, and only those.
+//
+// The store and every scan reading it hold a reference, and the file is
+// closed once they are all released. A segment compacted away is only
+// deleted then.
+final class Segment implements Closeable {
+	static final int MAGIC = 0x4C534D32;
+	static final int FOOTER_SIZE = 3 * Long.BYTES + 2 * Integer.BYTES;
+
+	private final Path path;
+	// Reopened if an interrupted reader closed it (see [readFully]).
+	private volatile FileChannel channel;
+	private final long size;
+	private final long dataEnd;
+	private final long entryCount;
+	private final BloomFilter filter;
+	private final String[] blockKeys;
+	private final long[] blockOffsets;
+
+	private final AtomicInteger references = new AtomicInteger(1);
+	private volatile boolean retired;
+
+	private Segment(Path path, FileChannel channel, long size, long dataEnd, long entryCount, BloomFilter filter, String[] blockKeys, long[] blockOffsets) {
+		this.path = path;
+		this.channel = channel;
+		this.size = size;
+		this.dataEnd = dataEnd;
+		this.entryCount = entryCount;
+		this.filter = filter;
+		this.blockKeys = blockKeys;
+		this.blockOffsets = blockOffsets;
+	}
+
+	static Segment open(Path path) throws IOException {
+		final var channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			final var size = channel.size();
+			final var footer = read(channel, size - FOOTER_SIZE, FOOTER_SIZE);
+			final var filterOffset = footer.getLong();
+			final var filterHashes = footer.getInt();
+			final var indexOffset = footer.getLong();
+			final var entryCount = footer.getLong();
+			if (footer.getInt() != MAGIC) {
+				throw new IOException(STR."\{path} is not a segment.");
+			}
+
+			final var filterWords = channel.map(FileChannel.MapMode.READ_ONLY, filterOffset, indexOffset - filterOffset).asLongBuffer();
+			final var filter = new BloomFilter(filterWords, filterHashes);
+
+			final var index = read(channel, indexOffset, Math.toIntExact(size - FOOTER_SIZE - indexOffset));
+			final var count = index.getInt();
+			final var blockKeys = new String[count];
+			final var blockOffsets = new long[count];
+			for (var i = 0; i < count; i++) {
+				final var key = new byte[index.getInt()];
+				index.get(key);
+				blockKeys[i] = new String(key, StandardCharsets.UTF_8);
+				blockOffsets[i] = index.getLong();
+			}
+
+			return new Segment(path, channel, size, filterOffset, entryCount, filter, blockKeys, blockOffsets);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	Path path() {
+		return this.path;
+	}
+
+	long size() {
+		return this.size;
+	}
+
+	long entryCount() {
+		return this.entryCount;
+	}
+
+	// False if [key] is certainly not in the segment.
+	boolean mightContain(String key) {
+		return this.filter.mightContain(key);
+	}
+
+	// The value of [key], [LsmStore.DELETED] for a tombstone, or null.
+	byte[] get(String key) throws IOException {
+		var block = Arrays.binarySearch(this.blockKeys, key);
+		if (block < 0) {
+			// The block whose first key is the greatest one before [key].
+			block = -block - 2;
+			if (block < 0) {
+				return null;
+			}
+		}
+
+		final var start = this.blockOffsets[block];
+		final var end = block + 1 < this.blockOffsets.length ? this.blockOffsets[block + 1] : this.dataEnd;
+		final var entries = this.readFully(start, Math.toIntExact(end - start));
+
+		while (entries.hasRemaining()) {
+			// Compared as strings, since UTF-8 bytes don't sort the same
+			// way as [String.compareTo] does for characters past U+FFFF.
+			final var keySize = entries.getInt();
+			final var comparison = new String(entries.array(), entries.position(), keySize, StandardCharsets.UTF_8).compareTo(key);
+			entries.position(entries.position() + keySize);
+			final var valueSize = entries.getInt();
+
+			if (comparison == 0) {
+				if (valueSize < 0) {
+					return LsmStore.DELETED;
+				}
+				final var value = new byte[valueSize];
+				entries.get(value);
+				return value;
+			}
+			if (comparison > 0) {
+				return null;
+			}
+			entries.position(entries.position() + Math.max(0, valueSize));
+		}
+		return null;
+	}
+
+	// Reads the entries in order, from the start of the block [fromKey]
+	// would be in, or from the first one if it's null.
+	SegmentCursor cursor(String fromKey) {
+		final var block = fromKey == null ? 0 : Math.max(0, this.blockBefore(fromKey, true));
+		final var start = block < this.blockOffsets.length ? this.blockOffsets[block] : this.dataEnd;
+		return new SegmentCursor(this, start, this.dataEnd);
+	}
+
+	// Reads the entries backwards, from the end of the last block with
+	// keys before [toKey], or from the last one if it's null.
+	ReverseSegmentCursor reverseCursor(String toKey) {
+		final var block = toKey == null ? this.blockOffsets.length - 1 : this.blockBefore(toKey, false);
+		return new ReverseSegmentCursor(this, this.blockOffsets, this.dataEnd, block);
+	}
+
+	// Takes a reference, unless it's already closed.
+	boolean acquire() {
+		while (true) {
+			final var references = this.references.get();
+			if (references == 0) {
+				return false;
+			}
+			if (this.references.compareAndSet(references, references + 1)) {
+				return true;
+			}
+		}
+	}
+
+	// Releases the store's reference, and deletes the file once
+	// nothing reads it anymore.
+	void retire() throws IOException {
+		this.retired = true;
+		this.close();
+	}
+
+	// Releases a reference.
+	@Override
+	public void close() throws IOException {
+		if (this.references.decrementAndGet() == 0) {
+			synchronized (this) {
+				this.channel.close();
+			}
+			if (this.retired) {
+				Files.delete(this.path);
+			}
+		}
+	}
+
+	ByteBuffer readFully(long position, int size) throws IOException {
+		final var buffer = ByteBuffer.allocate(size);
+		while (buffer.hasRemaining()) {
+			if (this.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException(STR."Unexpected end of segment at \{position + buffer.position()}.");
+			}
+		}
+		return buffer.flip();
+	}
+
+	// A thread interrupted in the middle of a read closes the channel for
+	// every reader. That thread gets a [ClosedByInterruptException], the
+	// others reopen the file and carry on, unless it was released.
+	int read(ByteBuffer buffer, long position) throws IOException {
+		while (true) {
+			final var channel = this.channel;
+			try {
+				return channel.read(buffer, position);
+			} catch (ClosedByInterruptException e) {
+				throw e;
+			} catch (ClosedChannelException e) {
+				if (!this.reopen(channel)) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	private synchronized boolean reopen(FileChannel closed) throws IOException {
+		if (this.references.get() == 0) {
+			return false;
+		}
+		if (this.channel == closed) {
+			this.channel = FileChannel.open(this.path, StandardOpenOption.READ);
+		}
+		return true;
+	}
+
+	// The last block whose first key is before [key], or at it if
+	// [inclusive]. -1 if there's none.
+	private int blockBefore(String key, boolean inclusive) {
+		final var block = Arrays.binarySearch(this.blockKeys, key);
+		if (block >= 0) {
+			return inclusive ? block : block - 1;
+		}
+		return -block - 2;
+	}
+
+	static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+		final var buffer = ByteBuffer.allocate(size);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException(STR."Unexpected end of segment at \{position + buffer.position()}.");
+			}
+		}
+		return buffer.flip();
+	}
+}
+
+// Entries in key order or in reverse, with [LsmStore.DELETED] for tombstones.
+interface EntryCursor {
+	// Moves to the next entry, false if there's none.
+	boolean next() throws IOException;
+
+	String key();
+
+	byte[] value();
+}
+
+// Walks a memtable, or part of it.
+final class MapCursor implements EntryCursor {
+	private final Iterator<Map.Entry<String, byte[]>> entries;
+	private Map.Entry<String, byte[]> entry;
+
+	MapCursor(Map<String, byte[]> entries) {
+		this.entries = entries.entrySet().iterator();
+	}
+
+	@Override
+	public boolean next() {
+		this.entry = this.entries.hasNext() ? this.entries.next() : null;
+		return this.entry != null;
+	}
+
+	@Override
+	public String key() {
+		return this.entry.getKey();
+	}
+
+	@Override
+	public byte[] value() {
+		return this.entry.getValue();
+	}
+}
+
+// Walks the entries of a segment from [start] to [end], reading
+// the file in large chunks rather than entry by entry.
+final class SegmentCursor implements EntryCursor {
+	private static final int CHUNK_SIZE = 256 << 10;
+
+	private final Segment segment;
+	private final long end;
+	// File offset of the first byte not read into [buffer] yet.
+	private long position;
+	private ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE).flip();
+
+	private String key;
+	private byte[] value;
+
+	SegmentCursor(Segment segment, long start, long end) {
+		this.segment = segment;
+		this.position = start;
+		this.end = end;
+	}
+
+	@Override
+	public boolean next() throws IOException {
+		if (!this.ensure(Integer.BYTES)) {
+			return false;
+		}
+
+		final var keySize = this.buffer.getInt();
+		this.ensure(keySize + Integer.BYTES);
+		final var key = new byte[keySize];
+		this.buffer.get(key);
+		this.key = new String(key, StandardCharsets.UTF_8);
+
+		final var valueSize = this.buffer.getInt();
+		if (valueSize < 0) {
+			this.value = LsmStore.DELETED;
+		} else {
+			this.ensure(valueSize);
+			this.value = new byte[valueSize];
+			this.buffer.get(this.value);
+		}
+		return true;
+	}
+
+	@Override
+	public String key() {
+		return this.key;
+	}
+
+	@Override
+	public byte[] value() {
+		return this.value;
+	}
+
+	// Makes sure [size] bytes are buffered, reading the next chunk
+	// if needed. Returns false at the end of the entries.
+	private boolean ensure(int size) throws IOException {
+		if (this.buffer.remaining() >= size) {
+			return true;
+		}
+		if (this.buffer.remaining() == 0 && this.position >= this.end) {
+			return false;
+		}
+
+		if (this.buffer.capacity() < size) {
+			final var grown = ByteBuffer.allocate(size);
+			grown.put(this.buffer);
+			this.buffer = grown;
+		} else {
+			this.buffer.compact();
+		}
+
+		while (this.buffer.position() < size) {
+			final var limit = (int) Math.min(this.buffer.capacity(), this.buffer.position() + (this.end - this.position));
+			this.buffer.limit(limit);
+			final var read = this.segment.read(this.buffer, this.position);
+			if (read <= 0) {
+				throw new EOFException("Unexpected end of segment.");
+			}
+			this.position += read;
+		}
+		this.buffer.flip();
+		return true;
+	}
+}
+
+// Walks the blocks of a segment backwards, from [lastBlock] to the first.
+// Blocks are read a few at a time, up to [CHUNK_SIZE] bytes at once, and
+// their entries handed out from the last.
+final class ReverseSegmentCursor implements EntryCursor {
+	private static final int CHUNK_SIZE = 256 << 10;
+
+	private final Segment segment;
+	private final long[] blockOffsets;
+	private final long dataEnd;
+	// The last block not read yet, -1 once they all are.
+	private int nextBlock;
+
+	private final List<String> keys = new ArrayList<>();
+	private final List<byte[]> values = new ArrayList<>();
+	private int position;
+
+	ReverseSegmentCursor(Segment segment, long[] blockOffsets, long dataEnd, int lastBlock) {
+		this.segment = segment;
+		this.blockOffsets = blockOffsets;
+		this.dataEnd = dataEnd;
+		this.nextBlock = lastBlock;
+	}
+
+	@Override
+	public boolean next() throws IOException {
+		if (this.position > 0) {
+			this.position--;
+			return true;
+		}
+		if (this.nextBlock < 0) {
+			return false;
+		}
+
+		final var end = this.nextBlock + 1 < this.blockOffsets.length ? this.blockOffsets[this.nextBlock + 1] : this.dataEnd;
+		var first = this.nextBlock;
+		while (first > 0 && end - this.blockOffsets[first - 1] <= CHUNK_SIZE) {
+			first--;
+		}
+		final var start = this.blockOffsets[first];
+		this.nextBlock = first - 1;
+
+		final var entries = this.segment.readFully(start, Math.toIntExact(end - start));
+		this.keys.clear();
+		this.values.clear();
+		while (entries.hasRemaining()) {
+			final var key = new byte[entries.getInt()];
+			entries.get(key);
+			this.keys.add(new String(key, StandardCharsets.UTF_8));
+
+			final var valueSize = entries.getInt();
+			final var value = valueSize < 0 ? LsmStore.DELETED : new byte[valueSize];
+			entries.get(value);
+			this.values.add(value);
+		}
+		this.position = this.keys.size();
+		return this.next();
+	}
+
+	@Override
+	public String key() {
+		return this.keys.get(this.position);
+	}
+
+	@Override
+	public byte[] value() {
+		return this.values.get(this.position);
+	}
+}
+
+// Merges several cursors, newest first, into one sorted stream
+// where every key appears once with its newest value.
+final class MergingCursor {
+	private final PriorityQueue<Source> sources;
+	private String key;
+	private byte[] value;
+
+	MergingCursor(List<EntryCursor> cursors, boolean descending) throws IOException {
+		final var byKey = Comparator.comparing((Source source) -> source.cursor.key());
+		this.sources = new PriorityQueue<>((descending ? byKey.reversed() : byKey).thenComparingInt(source -> source.rank));
+		for (var rank = 0; rank < cursors.size(); rank++) {
+			final var cursor = cursors.get(rank);
+			if (cursor.next()) {
+				this.sources.add(new Source(cursor, rank));
+			}
+		}
+	}
+
+	boolean next() throws IOException {
+		final var newest = this.sources.poll();
+		if (newest == null) {
+			return false;
+		}
+
+		this.key = newest.cursor.key();
+		this.value = newest.cursor.value();
+		this.advance(newest);
+
+		// Older values of the same key are shadowed.
+		while (!this.sources.isEmpty() && this.sources.peek().cursor.key().equals(this.key)) {
+			this.advance(this.sources.poll());
+		}
+		return true;
+	}
+
+	String key() {
+		return this.key;
+	}
+
+	byte[] value() {
+		return this.value;
+	}
+
+	private void advance(Source source) throws IOException {
+		if (source.cursor.next()) {
+			this.sources.add(source);
+		}
+	}
+
+	private record Source(EntryCursor cursor, int rank) {
+
+	}
+}
+
+// Writes a [Segment] from entries given in key order. The file is written
+// under a temporary name and renamed once complete and on disk.
+final class SegmentWriter {
+	static final int BLOCK_SIZE = 16 << 10;
+
+	private final Path path;
+	private final Path temporary;
+	private final FileChannel channel;
+	private final DataOutputStream output;
+	private final BloomFilter filter;
+	private final RateLimiter limiter;
+
+	private long offset;
+	private long entryCount;
+	private long blockStart = -BLOCK_SIZE;
+	private final List<byte[]> blockKeys = new ArrayList<>();
+	private final List<Long> blockOffsets = new ArrayList<>();
+
+	// The filter is sized for [expectedKeys], which may be a little more
+	// than what's written. [limiter] may be null, for writes that
+	// shouldn't be held back.
+	SegmentWriter(Path path, long expectedKeys, int bloomBitsPerKey, RateLimiter limiter) throws IOException {
+		this.path = path;
+		this.temporary = path.resolveSibling(STR."\{path.getFileName()}.tmp");
+		this.channel = FileChannel.open(this.temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		this.output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(this.channel), 1 << 20));
+		this.filter = BloomFilter.create(expectedKeys, bloomBitsPerKey);
+		this.limiter = limiter;
+	}
+
+	void add(String key, byte[] value) throws IOException {
+		final var keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		if (this.offset - this.blockStart >= BLOCK_SIZE) {
+			this.blockStart = this.offset;
+			this.blockKeys.add(keyBytes);
+			this.blockOffsets.add(this.offset);
+		}
+
+		this.filter.add(key);
+		this.output.writeInt(keyBytes.length);
+		this.output.write(keyBytes);
+		if (value == LsmStore.DELETED) {
+			this.output.writeInt(-1);
+		} else {
+			this.output.writeInt(value.length);
+			this.output.write(value);
+		}
+
+		final var written = 2 * Integer.BYTES + keyBytes.length + (value == LsmStore.DELETED ? 0 : value.length);
+		this.offset += written;
+		this.entryCount++;
+		if (this.limiter != null) {
+			this.limiter.acquire(written);
+		}
+	}
+
+	// Drops what was written so far.
+	void abort() throws IOException {
+		this.output.close();
+		Files.delete(this.temporary);
+	}
+
+	Segment finish() throws IOException {
+		final var filterOffset = this.offset;
+		this.filter.writeTo(this.output);
+
+		final var indexOffset = filterOffset + (long) this.filter.words() * Long.BYTES;
+		this.output.writeInt(this.blockKeys.size());
+		for (var i = 0; i < this.blockKeys.size(); i++) {
+			this.output.writeInt(this.blockKeys.get(i).length);
+			this.output.write(this.blockKeys.get(i));
+			this.output.writeLong(this.blockOffsets.get(i));
+		}
+
+		this.output.writeLong(filterOffset);
+		this.output.writeInt(this.filter.hashes());
+		this.output.writeLong(indexOffset);
+		this.output.writeLong(this.entryCount);
+		this.output.writeInt(Segment.MAGIC);
+		this.output.flush();
+		this.channel.force(true);
+		this.output.close();
+
+		Files.move(this.temporary, this.path, StandardCopyOption.ATOMIC_MOVE);
+		return Segment.open(this.path);
+	}
+}
+
+record FilterStats(long skips, long falsePositives) {
+
+	// How often a filter let a lookup through for a key the segment
+	// didn't hold, out of all the lookups of keys it didn't hold.
+	double falsePositiveRate() {
+		final var absent = this.skips + this.falsePositives;
+		return absent == 0 ? 0 : (double) this.falsePositives / absent;
+	}
+}
+
+// A Bloom filter: [mightContain] is true for every key that was added,
+// and for any other key with a probability of about 0.6185^bitsPerKey,
+// at the cost of [bitsPerKey] bits per key, whatever their size.
+//
+// Every key sets [hashes] bits, picked by double hashing a single 64-bit
+// hash of its characters. The words are either on the heap, while a
+// segment is written, or mapped from the segment file.
+final class BloomFilter {
+	private final LongBuffer words;
+	private final int hashes;
+	private final long bits;
+
+	BloomFilter(LongBuffer words, int hashes) {
+		this.words = words;
+		this.hashes = hashes;
+		this.bits = (long) words.capacity() * Long.SIZE;
+	}
+
+	static BloomFilter create(long expectedKeys, int bitsPerKey) {
+		if (bitsPerKey <= 0) {
+			return new BloomFilter(LongBuffer.allocate(0), 0);
+		}
+		final var words = Math.toIntExact(Math.max(1, (Math.max(1, expectedKeys) * bitsPerKey + Long.SIZE - 1) / Long.SIZE));
+		// The number of hashes that gives the fewest false positives.
+		final var hashes = (int) Math.max(1, Math.min(30, Math.round(bitsPerKey * Math.log(2))));
+		return new BloomFilter(LongBuffer.allocate(words), hashes);
+	}
+
+	void add(String key) {
+		final var hash = hash(key);
+		final var step = (hash >>> 32) | 1;
+		var combined = hash;
+		for (var i = 0; i < this.hashes; i++) {
+			final var bit = (combined & Long.MAX_VALUE) % this.bits;
+			final var word = (int) (bit >>> 6);
+			this.words.put(word, this.words.get(word) | 1L << bit);
+			combined += step;
+		}
+	}
+
+	boolean mightContain(String key) {
+		if (this.bits == 0) {
+			return true;
+		}
+
+		final var hash = hash(key);
+		final var step = (hash >>> 32) | 1;
+		var combined = hash;
+		for (var i = 0; i < this.hashes; i++) {
+			final var bit = (combined & Long.MAX_VALUE) % this.bits;
+			if ((this.words.get((int) (bit >>> 6)) & 1L << bit) == 0) {
+				return false;
+			}
+			combined += step;
+		}
+		return true;
+	}
+
+	int words() {
+		return this.words.capacity();
+	}
+
+	int hashes() {
+		return this.hashes;
+	}
+
+	void writeTo(DataOutputStream output) throws IOException {
+		for (var i = 0; i < this.words.capacity(); i++) {
+			output.writeLong(this.words.get(i));
+		}
+	}
+
+	// FNV-1a over the characters, so no bytes need to be encoded,
+	// followed by the MurmurHash3 finalizer to spread the bits.
+	private static long hash(String key) {
+		var hash = 0xCBF29CE484222325L;
+		for (var i = 0; i < key.length(); i++) {
+			hash = (hash ^ key.charAt(i)) * 0x100000001B3L;
+		}
+		hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+		hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return hash ^ (hash >>> 33);
+	}
+}
+
+// Spreads writes out so they never go faster than [bytesPerSecond]
+// on average, by sleeping whenever they get ahead of schedule.
+final class RateLimiter {
+	private final long bytesPerSecond;
+	private final long start = System.nanoTime();
+	private long bytes;
+
+	RateLimiter(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	void acquire(long bytes) {
+		this.bytes += bytes;
+		final var due = this.start + (long) (this.bytes * 1e9 / this.bytesPerSecond);
+		final var ahead = due - System.nanoTime();
+		if (ahead > 0) {
+			LockSupport.parkNanos(ahead);
+		}
 	}
 }
 
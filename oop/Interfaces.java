@@ -1,9 +1,60 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 public class Interfaces {
 
     public static void main(String[] args) {
+        // `java Interfaces.java bench` runs the repository benchmark instead.
+        if (args.length > 0 && args[0].equals("bench")) {
+            UserRepositoryBenchmarks.contention();
+            return;
+        }
+
         final UserRepository userRepository = new InMemoryUserRepository();
-        System.err.println(userRepository.findByName("Edwin"));
+        userRepository.save(new User("Edwin"));
+
+        // Every lookup hands out the same stored instance.
+        final var user = userRepository.findByName("Edwin");
+        System.err.println(user);
+        System.err.println(user == userRepository.findByName("Edwin"));
+
+        userRepository.save(new User("Edgar"));
+        userRepository.save(new User("Minino"));
+        System.err.println(userRepository.findByPrefix("Ed", 10));
+
+        // No need to lower case names before looking them up.
+        final var caseInsensitive = new InMemoryUserRepository(true);
+        caseInsensitive.save(new User("Edwin"));
+        System.err.println(caseInsensitive.findByName(new StringBuilder("EDWIN")));
     }
 }
 
@@ -13,13 +64,1167 @@ record User(String name) {
 
 interface UserRepository {
 
+    // The user with that name, or null if there is none.
     User findByName(String name);
+
+    // Stores the user, replacing any user with the same name.
+    void save(User user);
+
+    // Returns whether there was a user with that name.
+    boolean delete(String name);
+
+    // At most [limit] users whose name starts with [prefix], by name.
+    List<User> findByPrefix(String prefix, int limit);
+
+    // The users with those names, by name. Names without a user are left
+    // out. Implementations are free to reorder the lookups, for example
+    // to read a disk-backed index sequentially.
+    default Map<String, User> findAllByNames(Collection<String> names) {
+        final var result = new HashMap<String, User>();
+        for (final var name : names) {
+            final var user = this.findByName(name);
+            if (user != null) {
+                result.put(name, user);
+            }
+        }
+        return result;
+    }
 }
 
 class InMemoryUserRepository implements UserRepository {
 
+    private final boolean ignoreCase;
+
+    // Users by name, so finding one is a single hash lookup.
+    private final UserNameIndex users;
+
+    // The same users sorted by name. Names sharing a prefix sit next to
+    // each other, so a prefix search is one O(log n) seek followed by
+    // reading at most [limit] entries. A skip list, so reading it
+    // doesn't lock either.
+    private final NavigableMap<String, User> sortedUsers;
+
+    // Only writers take it, one at a time, readers never do.
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    InMemoryUserRepository() {
+        this(false);
+    }
+
+    // With [ignoreCase], names that only differ in case belong to the
+    // same user, and every lookup matches regardless of case.
+    InMemoryUserRepository(boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+        this.users = new UserNameIndex(ignoreCase);
+        this.sortedUsers = ignoreCase ? new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER) : new ConcurrentSkipListMap<>();
+    }
+
+    @Override
+    public User findByName(String name) {
+        return this.users.get(name);
+    }
+
+    // Accepts any characters, such as a slice of a request buffer, so
+    // callers don't need to turn them into a (lower case) String first.
+    public User findByName(CharSequence name) {
+        return this.users.get(name);
+    }
+
+    @Override
+    public void save(User user) {
+        this.writeLock.lock();
+        try {
+            this.users.put(user);
+            this.sortedUsers.put(user.name(), user);
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(String name) {
+        this.writeLock.lock();
+        try {
+            this.sortedUsers.remove(name);
+            return this.users.remove(name) != null;
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    // Every user as of one instant, for exports. Writers wait while
+    // the users are copied out, readers carry on as usual.
+    public List<User> snapshot() {
+        this.writeLock.lock();
+        try {
+            return this.users.toList();
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    // One pass over the names, straight against the index, with the
+    // result map sized up front so it never has to be rehashed.
+    @Override
+    public Map<String, User> findAllByNames(Collection<String> names) {
+        final var result = HashMap.<String, User>newHashMap(names.size());
+        for (final var name : names) {
+            final var user = this.users.get(name);
+            if (user != null) {
+                result.put(name, user);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<User> findByPrefix(String prefix, int limit) {
+        final var result = new ArrayList<User>(Math.min(Math.max(0, limit), 64));
+
+        for (final var user : this.sortedUsers.tailMap(prefix, true).values()) {
+            if (result.size() >= limit || !user.name().regionMatches(this.ignoreCase, 0, prefix, 0, prefix.length())) {
+                break;
+            }
+            result.add(user);
+        }
+
+        return result;
+    }
+}
+
+// An open-addressing hash table of users keyed by their name.
+//
+// Keys are looked up as a [CharSequence] and hashed and compared one
+// character at a time, folding the case when [ignoreCase] is set, so a
+// lookup never has to build a String, lower case or otherwise.
+//
+// Reads never lock: slots are read with volatile semantics, and a resize
+// builds a whole new table before publishing it, so readers either see
+// the old table or the complete new one. Writes must not run
+// concurrently with each other, the caller has to serialize them.
+final class UserNameIndex {
+
+    // Marks the slot of a removed user, so probing carries on past it.
+    private static final User DELETED = new User("");
+
+    private final boolean ignoreCase;
+
+    private volatile Table table = new Table(16);
+    private int size;
+    private int deleted;
+
+    UserNameIndex(boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+    }
+
+    User get(CharSequence name) {
+        final var table = this.table;
+        final var slot = this.find(table, name, this.hash(name));
+        return slot < 0 ? null : table.users.get(slot);
+    }
+
+    // Returns the user that was replaced, if any.
+    User put(User user) {
+        final var hash = this.hash(user.name());
+        final var slot = this.find(this.table, user.name(), hash);
+        if (slot >= 0) {
+            return this.table.users.getAndSet(slot, user);
+        }
+
+        if ((this.size + this.deleted + 1) * 2 > this.table.capacity()) {
+            this.resize(this.size * 4 > this.table.capacity() ? this.table.capacity() * 2 : this.table.capacity());
+        }
+
+        final var table = this.table;
+        final var mask = table.capacity() - 1;
+        var free = hash & mask;
+        while (table.users.get(free) != null && table.users.get(free) != DELETED) {
+            free = (free + 1) & mask;
+        }
+        if (table.users.get(free) == DELETED) {
+            this.deleted--;
+        }
+
+        // The hash first: the volatile write of the user publishes it.
+        table.hashes[free] = hash;
+        table.users.set(free, user);
+        this.size++;
+        return null;
+    }
+
+    User remove(CharSequence name) {
+        final var table = this.table;
+        final var slot = this.find(table, name, this.hash(name));
+        if (slot < 0) {
+            return null;
+        }
+
+        this.size--;
+        this.deleted++;
+        return table.users.getAndSet(slot, DELETED);
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    // Every user, read without any lock. Only a consistent
+    // snapshot if writers are kept out while it runs.
+    List<User> toList() {
+        final var table = this.table;
+        final var result = new ArrayList<User>(this.size);
+        for (var slot = 0; slot < table.capacity(); slot++) {
+            final var user = table.users.get(slot);
+            if (user != null && user != DELETED) {
+                result.add(user);
+            }
+        }
+        return result;
+    }
+
+    private int find(Table table, CharSequence name, int hash) {
+        final var mask = table.capacity() - 1;
+        for (var slot = hash & mask; ; slot = (slot + 1) & mask) {
+            final var user = table.users.get(slot);
+            if (user == null) {
+                return -1;
+            }
+            if (user != DELETED && table.hashes[slot] == hash && this.matches(user.name(), name)) {
+                return slot;
+            }
+        }
+    }
+
+    private boolean matches(String stored, CharSequence name) {
+        if (stored.length() != name.length()) {
+            return false;
+        }
+        for (var i = 0; i < stored.length(); i++) {
+            if (this.fold(stored.charAt(i)) != this.fold(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int hash(CharSequence name) {
+        var hash = 0;
+        for (var i = 0; i < name.length(); i++) {
+            hash = 31 * hash + this.fold(name.charAt(i));
+        }
+        // Spread the bits, the table only looks at the low ones.
+        return hash ^ (hash >>> 16);
+    }
+
+    // The same folding [String.equalsIgnoreCase] does.
+    private char fold(char c) {
+        return this.ignoreCase ? Character.toLowerCase(Character.toUpperCase(c)) : c;
+    }
+
+    private void resize(int capacity) {
+        final var old = this.table;
+        final var resized = new Table(capacity);
+
+        final var mask = capacity - 1;
+        for (var i = 0; i < old.capacity(); i++) {
+            final var user = old.users.get(i);
+            if (user != null && user != DELETED) {
+                var slot = old.hashes[i] & mask;
+                while (resized.users.get(slot) != null) {
+                    slot = (slot + 1) & mask;
+                }
+                resized.hashes[slot] = old.hashes[i];
+                resized.users.set(slot, user);
+            }
+        }
+
+        this.table = resized;
+        this.deleted = 0;
+    }
+
+    private static final class Table {
+        final AtomicReferenceArray<User> users;
+        // Hash of the user in the same slot, compared before any name.
+        final int[] hashes;
+
+        Table(int capacity) {
+            this.users = new AtomicReferenceArray<>(capacity);
+            this.hashes = new int[capacity];
+        }
+
+        int capacity() {
+            return this.hashes.length;
+        }
+    }
+}
+
+// A [UserRepository] on disk, made of two files in [directory]:
+//
+// - `users.log`: every save and delete ever made, appended one after
+//   the other as a kind byte, the length of the name and its UTF-8 bytes.
+// - `users.index`: an open-addressing hash table from the hash of a name
+//   to the offset of its latest save in the log, mapped into memory.
+//
+// Both files are mapped, so a lookup probes the index and compares the
+// name right inside the mapped log, without copying it to the heap. The
+// index remembers how much of the log it covers, so opening the store
+// only replays what was appended after that (nothing after a clean
+// close). Each mapping is limited to 2 GB.
+//
+// The index pages reach the disk whenever the OS sees fit, so after a
+// crash its header may not match its slots. Both files are forced
+// together at checkpoints (on close and on every rehash), and the
+// header records the last one. If the store wasn't closed cleanly,
+// opening it replays the log from that checkpoint, which is harmless
+// for the records the slots already reflect.
+//
+// The log is only mapped again once it has doubled since it last was,
+// records past the mapping are read from the file in the meantime.
+// Old mappings are only released by the garbage collector, remapping on
+// every append would pile them up.
+class PersistentUserRepository implements UserRepository, AutoCloseable {
+
+    private static final byte SAVE = 1;
+    private static final byte DELETE = 2;
+    private static final int RECORD_HEADER_SIZE = 1 + Integer.BYTES;
+
+    private static final int INDEX_MAGIC = 0x55494458;
+    private static final int INDEX_FORMAT = 2;
+    private static final int INDEX_HEADER_SIZE = 56;
+    private static final int SLOT_SIZE = 2 * Long.BYTES;
+
+    // Reserved hashes for free slots.
+    private static final long EMPTY = 0;
+    private static final long DELETED = 1;
+
+    private final Path indexPath;
+    private final FileChannel log;
+    private MappedByteBuffer logMapping;
+    private long logLength;
+
+    private MappedByteBuffer index;
+    private long capacity;
+    private long size;
+    private long tombstones;
+    // How much of the log the slots reflect.
+    private long covered;
+
+    PersistentUserRepository(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.indexPath = directory.resolve("users.index");
+        this.log = FileChannel.open(directory.resolve("users.log"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.logLength = this.log.size();
+
+        if (Files.exists(this.indexPath)) {
+            this.index = map(this.indexPath, Files.size(this.indexPath));
+            if (this.index.getInt(0) == INDEX_MAGIC && this.index.getInt(4) == INDEX_FORMAT) {
+                this.capacity = this.index.getLong(8);
+                if (this.index.getInt(48) == 1) {
+                    this.size = this.index.getLong(16);
+                    this.tombstones = this.index.getLong(24);
+                    this.covered = this.index.getLong(32);
+                } else {
+                    // Only the checkpoint can be trusted, and the counts
+                    // are recomputed from the slots.
+                    this.countSlots();
+                    this.covered = this.index.getLong(40);
+                }
+            } else {
+                this.index = null;
+            }
+        }
+        if (this.index == null || this.covered > this.logLength) {
+            this.createIndex(1024);
+        }
+
+        // Until [close], a crash must be noticed by the next open.
+        this.index.putInt(48, 0);
+        this.index.force(0, INDEX_HEADER_SIZE);
+
+        this.replay(this.covered);
+    }
+
+    @Override
+    public synchronized User findByName(String name) {
+        final var bytes = name.getBytes(StandardCharsets.UTF_8);
+        // The name matched byte for byte, so there is nothing to decode.
+        return this.find(bytes, hash(bytes)) < 0 ? null : new User(name);
+    }
+
+    @Override
+    public synchronized void save(User user) {
+        final var bytes = user.name().getBytes(StandardCharsets.UTF_8);
+        final var hash = hash(bytes);
+
+        // A user is only a name, so saving it again changes nothing.
+        if (this.find(bytes, hash) >= 0) {
+            return;
+        }
+
+        this.put(hash, this.append(SAVE, bytes));
+        this.covered = this.logLength;
+        this.commit();
+    }
+
+    @Override
+    public synchronized boolean delete(String name) {
+        final var bytes = name.getBytes(StandardCharsets.UTF_8);
+        final var slot = this.slot(bytes, hash(bytes));
+        if (slot < 0) {
+            return false;
+        }
+
+        this.append(DELETE, bytes);
+        this.remove(slot);
+        this.covered = this.logLength;
+        this.commit();
+        return true;
+    }
+
+    // The hash index has no order, so this reads the whole log
+    // sequentially and keeps the saves that are still current.
+    @Override
+    public synchronized List<User> findByPrefix(String prefix, int limit) {
+        final var prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+        final var result = new ArrayList<User>();
+
+        for (var offset = 0L; offset < this.logLength; ) {
+            final var length = this.recordLength(offset);
+            final var name = this.recordName(offset, length);
+
+            if (this.recordKind(offset) == SAVE
+                && length >= prefixBytes.length
+                && name.slice(0, prefixBytes.length).equals(ByteBuffer.wrap(prefixBytes))) {
+                final var bytes = new byte[length];
+                name.get(0, bytes);
+                if (this.find(bytes, hash(bytes)) == offset) {
+                    result.add(new User(new String(bytes, StandardCharsets.UTF_8)));
+                }
+            }
+
+            offset += RECORD_HEADER_SIZE + length;
+        }
+
+        result.sort(Comparator.comparing(User::name));
+        return result.subList(0, Math.min(Math.max(0, limit), result.size()));
+    }
+
+    // Probes the index for every name first, then reads the matching
+    // records in log order, so the log is read front to back once.
+    @Override
+    public synchronized Map<String, User> findAllByNames(Collection<String> names) {
+        final var offsets = new long[names.size()];
+        final var candidates = new String[names.size()];
+        final var encoded = new byte[names.size()][];
+        var count = 0;
+
+        for (final var name : names) {
+            final var bytes = name.getBytes(StandardCharsets.UTF_8);
+            final var offset = this.candidate(hash(bytes));
+            if (offset >= 0) {
+                offsets[count] = offset;
+                candidates[count] = name;
+                encoded[count] = bytes;
+                count++;
+            }
+        }
+
+        final var order = new Integer[count];
+        for (var i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> offsets[i]));
+
+        final var result = HashMap.<String, User>newHashMap(count);
+        for (final var i : order) {
+            // Hash collisions are rare, fall back to a full probe for them.
+            if (this.matches(offsets[i], encoded[i]) || this.find(encoded[i], hash(encoded[i])) >= 0) {
+                result.put(candidates[i], new User(candidates[i]));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.checkpoint();
+        // Only once everything else is on disk.
+        this.index.putInt(48, 1);
+        this.index.force(0, INDEX_HEADER_SIZE);
+        this.log.close();
+    }
+
+    // Returns the log offset of the current save of that name, or -1.
+    private long find(byte[] name, long hash) {
+        final var slot = this.slot(name, hash);
+        return slot < 0 ? -1 : this.index.getLong(slotPosition(slot) + Long.BYTES);
+    }
+
+    private long slot(byte[] name, long hash) {
+        final var mask = this.capacity - 1;
+        for (var slot = hash & mask; ; slot = (slot + 1) & mask) {
+            final var stored = this.index.getLong(slotPosition(slot));
+            if (stored == EMPTY) {
+                return -1;
+            }
+            if (stored == hash && this.matches(this.index.getLong(slotPosition(slot) + Long.BYTES), name)) {
+                return slot;
+            }
+        }
+    }
+
+    // Offset of the first entry with that hash, without checking the name.
+    private long candidate(long hash) {
+        final var mask = this.capacity - 1;
+        for (var slot = hash & mask; ; slot = (slot + 1) & mask) {
+            final var stored = this.index.getLong(slotPosition(slot));
+            if (stored == EMPTY) {
+                return -1;
+            }
+            if (stored == hash) {
+                return this.index.getLong(slotPosition(slot) + Long.BYTES);
+            }
+        }
+    }
+
+    // Compares the name in place, inside the mapped log. After a crash,
+    // slots may point past the end of the log, they match nothing.
+    private boolean matches(long offset, byte[] name) {
+        if (offset + RECORD_HEADER_SIZE + name.length > this.logLength) {
+            return false;
+        }
+        final var length = this.recordLength(offset);
+        return length == name.length && this.recordName(offset, length).equals(ByteBuffer.wrap(name));
+    }
+
+    private byte recordKind(long offset) {
+        return this.isMapped(offset + 1) ? this.logMapping.get((int) offset) : this.readLog(offset, 1).get(0);
+    }
+
+    private int recordLength(long offset) {
+        final var end = offset + RECORD_HEADER_SIZE;
+        return this.isMapped(end) ? this.logMapping.getInt((int) offset + 1) : this.readLog(offset + 1, Integer.BYTES).getInt(0);
+    }
+
+    // The name bytes of a record: a view of the mapping, or a copy
+    // for records past it.
+    private ByteBuffer recordName(long offset, int length) {
+        final var start = offset + RECORD_HEADER_SIZE;
+        return this.isMapped(start + length) ? this.logMapping.slice((int) start, length) : this.readLog(start, length);
+    }
+
+    // Whether the log is mapped up to [end], mapping it again if
+    // it has at least doubled since the last time.
+    private boolean isMapped(long end) {
+        if (this.logMapping != null && end <= this.logMapping.capacity()) {
+            return true;
+        }
+
+        final var mappable = Math.min(this.logLength, Integer.MAX_VALUE);
+        if (end > mappable || (this.logMapping != null && mappable < 2L * this.logMapping.capacity())) {
+            return false;
+        }
+        try {
+            this.logMapping = this.log.map(FileChannel.MapMode.READ_ONLY, 0, mappable);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return true;
+    }
+
+    private ByteBuffer readLog(long offset, int length) {
+        final var buffer = ByteBuffer.allocate(length);
+        try {
+            while (buffer.hasRemaining()) {
+                if (this.log.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException(STR."Unexpected end of the user log at \{offset + buffer.position()}.");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buffer.flip();
+    }
+
+    private long append(byte kind, byte[] name) {
+        final var record = ByteBuffer.allocate(RECORD_HEADER_SIZE + name.length);
+        record.put(kind).putInt(name.length).put(name).flip();
+
+        final var offset = this.logLength;
+        try {
+            while (record.hasRemaining()) {
+                this.log.write(record, this.logLength + record.position());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.logLength += record.limit();
+        return offset;
+    }
+
+    private void put(long hash, long offset) {
+        if ((this.size + this.tombstones + 1) * 2 > this.capacity) {
+            this.rehash(this.size * 4 > this.capacity ? this.capacity * 2 : this.capacity);
+        }
+
+        final var mask = this.capacity - 1;
+        var slot = hash & mask;
+        while (isOccupied(this.index.getLong(slotPosition(slot)))) {
+            slot = (slot + 1) & mask;
+        }
+
+        if (this.index.getLong(slotPosition(slot)) == DELETED) {
+            this.tombstones--;
+        }
+        this.index.putLong(slotPosition(slot), hash);
+        this.index.putLong(slotPosition(slot) + Long.BYTES, offset);
+        this.size++;
+    }
+
+    private void remove(long slot) {
+        this.index.putLong(slotPosition(slot), DELETED);
+        this.size--;
+        this.tombstones++;
+    }
+
+    // Records in the header how much of the log the index covers.
+    private void commit() {
+        this.index.putLong(16, this.size);
+        this.index.putLong(24, this.tombstones);
+        this.index.putLong(32, this.covered);
+    }
+
+    // Forces the log and then the index, so the index never covers
+    // records the disk doesn't have, and records that point in the
+    // header for the next open after a crash.
+    private void checkpoint() throws IOException {
+        this.log.force(true);
+        this.commit();
+        this.index.putLong(40, this.covered);
+        this.index.force();
+    }
+
+    private void countSlots() {
+        this.size = 0;
+        this.tombstones = 0;
+        for (var slot = 0L; slot < this.capacity; slot++) {
+            final var hash = this.index.getLong(slotPosition(slot));
+            if (hash == DELETED) {
+                this.tombstones++;
+            } else if (hash != EMPTY) {
+                this.size++;
+            }
+        }
+    }
+
+    // Applies the records the index doesn't know about yet. A record cut
+    // short by a crash is dropped from the end of the log.
+    private void replay(long from) throws IOException {
+        var offset = from;
+        while (offset + RECORD_HEADER_SIZE <= this.logLength) {
+            final var length = this.recordLength(offset);
+            if (length < 0 || offset + RECORD_HEADER_SIZE + length > this.logLength) {
+                break;
+            }
+
+            final var bytes = new byte[length];
+            this.recordName(offset, length).get(0, bytes);
+            final var slot = this.slot(bytes, hash(bytes));
+            if (slot >= 0) {
+                this.remove(slot);
+            }
+            if (this.recordKind(offset) == SAVE) {
+                this.put(hash(bytes), offset);
+            }
+
+            offset += RECORD_HEADER_SIZE + length;
+            this.covered = offset;
+        }
+
+        if (offset < this.logLength) {
+            this.log.truncate(offset);
+            this.logLength = offset;
+            this.logMapping = null;
+        }
+        if (offset > from) {
+            this.checkpoint();
+        } else {
+            this.commit();
+        }
+    }
+
+    private void createIndex(long capacity) throws IOException {
+        Files.deleteIfExists(this.indexPath);
+        this.index = map(this.indexPath, INDEX_HEADER_SIZE + capacity * SLOT_SIZE);
+        this.index.putInt(0, INDEX_MAGIC);
+        this.index.putInt(4, INDEX_FORMAT);
+        this.index.putLong(8, capacity);
+        this.capacity = capacity;
+        this.size = 0;
+        this.tombstones = 0;
+        this.covered = 0;
+        this.index.putLong(16, 0);
+        this.index.putLong(24, 0);
+        this.index.putLong(32, 0);
+        this.index.putLong(40, 0);
+        this.index.putInt(48, 0);
+    }
+
+    // Moves every entry into a new index file, dropping the tombstones.
+    // The new file starts at a checkpoint of what the slots reflect so
+    // far, which in the middle of [replay] isn't the whole log.
+    private void rehash(long capacity) {
+        final var old = this.index;
+        final var oldCapacity = this.capacity;
+
+        try {
+            final var temporary = this.indexPath.resolveSibling("users.index.tmp");
+            Files.deleteIfExists(temporary);
+            this.index = map(temporary, INDEX_HEADER_SIZE + capacity * SLOT_SIZE);
+            this.index.putInt(0, INDEX_MAGIC);
+            this.index.putInt(4, INDEX_FORMAT);
+            this.index.putLong(8, capacity);
+            this.capacity = capacity;
+            this.size = 0;
+            this.tombstones = 0;
+
+            for (var slot = 0L; slot < oldCapacity; slot++) {
+                final var hash = old.getLong(slotPosition(slot));
+                if (isOccupied(hash)) {
+                    this.put(hash, old.getLong(slotPosition(slot) + Long.BYTES));
+                }
+            }
+            this.checkpoint();
+
+            Files.move(temporary, this.indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static MappedByteBuffer map(Path path, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException(STR."\{path} is too large to map.");
+        }
+        try (final var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static int slotPosition(long slot) {
+        return (int) (INDEX_HEADER_SIZE + slot * SLOT_SIZE);
+    }
+
+    private static boolean isOccupied(long hash) {
+        return hash != EMPTY && hash != DELETED;
+    }
+
+    // 64-bit FNV-1a, moved out of the reserved values.
+    private static long hash(byte[] name) {
+        var hash = 0xCBF29CE484222325L;
+        for (final var b : name) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001B3L;
+        }
+        return isOccupied(hash) ? hash : hash + 2;
+    }
+}
+
+// A [UserRepository] that remembers the answers of a slower one.
+//
+// The cache holds at most [maximumSize] names, including names known to
+// have no user (negative caching). When it's full, a newly loaded name
+// only gets in if it has been asked for more often than the least
+// recently used name it would replace (TinyLFU admission), so a one-off
+// scan over many names can't flush the names that are asked for all the
+// time. How often a name is asked for is estimated by a [FrequencySketch].
+//
+// Misses are loaded without holding the lock, so a write may land in
+// between. Every write bumps the generation of its name's stripe, and a
+// loaded answer is only admitted if its stripe didn't move meanwhile.
+class CachingUserRepository implements UserRepository {
+
+    // Cached answer for names without a user.
+    private static final User MISSING = new User("");
+
+    private static final int GENERATION_STRIPES = 64;
+
+    private final UserRepository backing;
+    private final int maximumSize;
+    private final FrequencySketch frequencies;
+
+    // In access order: the eldest entry is the least recently used.
+    private final LinkedHashMap<String, User> cache;
+    // Writes so far, by stripe of names (see [stripe]).
+    private final long[] generations = new long[GENERATION_STRIPES];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    CachingUserRepository(UserRepository backing, int maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException(STR."Invalid maximum size: \{maximumSize}.");
+        }
+
+        this.backing = backing;
+        this.maximumSize = maximumSize;
+        this.frequencies = new FrequencySketch(maximumSize);
+        this.cache = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
     @Override
     public User findByName(String name) {
-        return new User(name);
+        final long generation;
+        synchronized (this) {
+            this.frequencies.increment(name);
+            final var cached = this.cache.get(name);
+            if (cached != null) {
+                this.hits.increment();
+                return cached == MISSING ? null : cached;
+            }
+            generation = this.generations[stripe(name)];
+        }
+
+        // Don't hold the lock while the backing repository is slow.
+        this.misses.increment();
+        final var user = this.backing.findByName(name);
+        this.admit(name, user, generation);
+        return user;
+    }
+
+    @Override
+    public void save(User user) {
+        this.backing.save(user);
+        synchronized (this) {
+            this.generations[stripe(user.name())]++;
+            // Only refresh names already cached, writes alone don't earn a place.
+            this.cache.replace(user.name(), user);
+        }
+    }
+
+    @Override
+    public boolean delete(String name) {
+        final var deleted = this.backing.delete(name);
+        synchronized (this) {
+            this.generations[stripe(name)]++;
+            this.cache.replace(name, MISSING);
+        }
+        return deleted;
+    }
+
+    // Prefix results change with every save, they are not cached.
+    @Override
+    public List<User> findByPrefix(String prefix, int limit) {
+        return this.backing.findByPrefix(prefix, limit);
+    }
+
+    // Answers what it can from the cache and sends the rest to the
+    // backing repository as a single batch.
+    @Override
+    public Map<String, User> findAllByNames(Collection<String> names) {
+        final var result = new HashMap<String, User>();
+        final var missing = new ArrayList<String>();
+        final var generations = new ArrayList<Long>();
+
+        synchronized (this) {
+            for (final var name : names) {
+                this.frequencies.increment(name);
+                final var cached = this.cache.get(name);
+                if (cached == null) {
+                    missing.add(name);
+                    generations.add(this.generations[stripe(name)]);
+                } else if (cached != MISSING) {
+                    result.put(name, cached);
+                }
+            }
+        }
+        this.hits.add(names.size() - missing.size());
+        this.misses.add(missing.size());
+
+        if (!missing.isEmpty()) {
+            final var loaded = this.backing.findAllByNames(missing);
+            for (var i = 0; i < missing.size(); i++) {
+                this.admit(missing.get(i), loaded.get(missing.get(i)), generations.get(i));
+            }
+            result.putAll(loaded);
+        }
+
+        return result;
+    }
+
+    CacheStats stats() {
+        return new CacheStats(this.hits.sum(), this.misses.sum(), this.evictions.sum());
+    }
+
+    // [generation] is the one of the name's stripe before it was loaded.
+    private synchronized void admit(String name, User user, long generation) {
+        if (this.generations[stripe(name)] != generation) {
+            // Written to while it was loaded, [user] may be stale.
+            return;
+        }
+
+        final var value = user == null ? MISSING : user;
+        if (this.cache.containsKey(name) || this.cache.size() < this.maximumSize) {
+            this.cache.put(name, value);
+            return;
+        }
+
+        final var eldest = this.cache.entrySet().iterator().next();
+        if (this.frequencies.frequency(name) > this.frequencies.frequency(eldest.getKey())) {
+            this.cache.remove(eldest.getKey());
+            this.cache.put(name, value);
+            this.evictions.increment();
+        }
+    }
+
+    private static int stripe(String name) {
+        final var hash = name.hashCode();
+        return (hash ^ (hash >>> 16)) & (GENERATION_STRIPES - 1);
+    }
+}
+
+record CacheStats(long hits, long misses, long evictions) {
+
+    double hitRate() {
+        final var requests = this.hits + this.misses;
+        return requests == 0 ? 0 : (double) this.hits / requests;
+    }
+}
+
+// A count-min sketch of how often names were asked for, with 4-bit
+// counters packed 16 to a long. Every name is counted in four places
+// and its frequency is the smallest of the four, which is never too low
+// and rarely too high. Once [sampleSize] names have been counted, every
+// counter is halved, so the sketch forgets names that went out of style.
+//
+// Not thread-safe, [CachingUserRepository] only uses it under its lock.
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {0x97CB3127L, 0xB0E77F2DL, 0x5BF07C6DL, 0xC2B2AE35L};
+
+    private final long[] table;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int maximumSize) {
+        this.table = new long[Math.max(8, Integer.highestOneBit(Math.max(1, maximumSize) - 1) << 1)];
+        this.sampleSize = 10 * Math.max(1, maximumSize);
+    }
+
+    // At most 15.
+    int frequency(String name) {
+        final var hash = spread(name.hashCode());
+        var frequency = Integer.MAX_VALUE;
+        for (var i = 0; i < SEEDS.length; i++) {
+            frequency = Math.min(frequency, this.counter(hash, i));
+        }
+        return frequency;
+    }
+
+    void increment(String name) {
+        final var hash = spread(name.hashCode());
+        var added = false;
+        for (var i = 0; i < SEEDS.length; i++) {
+            final var index = this.index(hash, i);
+            final var shift = this.shift(hash, i);
+            if (((this.table[index] >>> shift) & 0xF) < 15) {
+                this.table[index] += 1L << shift;
+                added = true;
+            }
+        }
+
+        if (added && ++this.additions == this.sampleSize) {
+            this.reset();
+        }
+    }
+
+    private int counter(int hash, int i) {
+        return (int) ((this.table[this.index(hash, i)] >>> this.shift(hash, i)) & 0xF);
+    }
+
+    private int index(int hash, int i) {
+        final var h = (hash + SEEDS[i]) * SEEDS[i];
+        return (int) ((h + (h >>> 32)) & (this.table.length - 1));
+    }
+
+    // Which of the 16 counters in the long: each row owns 4 of them.
+    private int shift(int hash, int i) {
+        final var counter = ((hash >>> (i << 3)) & 3) << 2 | i;
+        return counter << 2;
+    }
+
+    // Halves every counter at once: shift the whole long right by one
+    // and clear the bit that leaked in from the neighbouring counter.
+    private void reset() {
+        for (var i = 0; i < this.table.length; i++) {
+            this.table[i] = (this.table[i] >>> 1) & 0x7777777777777777L;
+        }
+        this.additions = this.sampleSize / 2;
+    }
+
+    private static int spread(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
+
+// The same operations as [UserRepository], but they return right away
+// with a future that completes once the answer is there.
+interface AsyncUserRepository extends AutoCloseable {
+
+    CompletableFuture<User> findByName(String name);
+
+    CompletableFuture<Void> save(User user);
+
+    CompletableFuture<Boolean> delete(String name);
+
+    CompletableFuture<List<User>> findByPrefix(String prefix, int limit);
+
+    CompletableFuture<Map<String, User>> findAllByNames(Collection<String> names);
+
+    @Override
+    void close();
+
+    // Runs the calls to [repository] on virtual threads, with at most
+    // [maxConcurrency] of them talking to it at the same time.
+    static AsyncUserRepository of(UserRepository repository, int maxConcurrency) {
+        return new VirtualThreadUserRepository(repository, maxConcurrency);
+    }
+}
+
+// Turns a blocking [UserRepository] into an [AsyncUserRepository].
+//
+// Every call gets its own virtual thread, so thousands of lookups can
+// wait on slow storage at once without a pool of platform threads to
+// size. The semaphore caps how many of them reach the repository, the
+// rest wait for a permit, which is also cheap on a virtual thread.
+class VirtualThreadUserRepository implements AsyncUserRepository {
+
+    private final UserRepository repository;
+    private final Semaphore permits;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    VirtualThreadUserRepository(UserRepository repository, int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException(STR."Invalid concurrency limit: \{maxConcurrency}.");
+        }
+
+        this.repository = repository;
+        this.permits = new Semaphore(maxConcurrency);
+    }
+
+    @Override
+    public CompletableFuture<User> findByName(String name) {
+        return this.submit(() -> this.repository.findByName(name));
+    }
+
+    @Override
+    public CompletableFuture<Void> save(User user) {
+        return this.submit(() -> {
+            this.repository.save(user);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> delete(String name) {
+        return this.submit(() -> this.repository.delete(name));
+    }
+
+    @Override
+    public CompletableFuture<List<User>> findByPrefix(String prefix, int limit) {
+        return this.submit(() -> this.repository.findByPrefix(prefix, limit));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, User>> findAllByNames(Collection<String> names) {
+        return this.submit(() -> this.repository.findAllByNames(names));
+    }
+
+    // Waits for the calls already submitted to finish.
+    @Override
+    public void close() {
+        this.executor.close();
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> call) {
+        return CompletableFuture.supplyAsync(() -> {
+            this.permits.acquireUninterruptibly();
+            try {
+                return call.get();
+            } finally {
+                this.permits.release();
+            }
+        }, this.executor);
+    }
+}
+
+// Hand-rolled benchmarks for the repositories, printed to stderr.
+final class UserRepositoryBenchmarks {
+
+    private UserRepositoryBenchmarks() {
+    }
+
+    // Lookups per second on an [InMemoryUserRepository] while two
+    // threads keep saving and deleting users, for a growing number of
+    // reader threads. Readers never lock, so they should scale with the
+    // cores no matter how busy the writers are.
+    static void contention() {
+        final int userCount = 200_000;
+        final var names = new String[userCount];
+        for (var i = 0; i < userCount; i++) {
+            names[i] = STR."user-\{i}";
+        }
+
+        final var repository = new InMemoryUserRepository();
+        for (final var name : names) {
+            repository.save(new User(name));
+        }
+
+        System.err.println(STR."InMemoryUserRepository, \{userCount} users, 2 writers, \{Runtime.getRuntime().availableProcessors()} cores.");
+
+        for (final var readerCount : new int[]{1, 16, 256}) {
+            final var reads = new LongAdder();
+            final var writes = new LongAdder();
+            final var deadline = System.nanoTime() + Duration.ofSeconds(2).toNanos();
+
+            final var threads = new ArrayList<Thread>();
+            for (var i = 0; i < readerCount; i++) {
+                threads.add(new Thread(() -> {
+                    final var random = ThreadLocalRandom.current();
+                    var done = 0L;
+                    while (System.nanoTime() < deadline) {
+                        repository.findByName(names[random.nextInt(userCount)]);
+                        done++;
+                    }
+                    reads.add(done);
+                }));
+            }
+            for (var i = 0; i < 2; i++) {
+                threads.add(new Thread(() -> {
+                    final var random = ThreadLocalRandom.current();
+                    var done = 0L;
+                    while (System.nanoTime() < deadline) {
+                        final var name = names[random.nextInt(userCount)];
+                        repository.delete(name);
+                        repository.save(new User(name));
+                        done += 2;
+                    }
+                    writes.add(done);
+                }));
+            }
+
+            threads.forEach(Thread::start);
+            for (final var thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+
+            System.err.println(STR."  \{readerCount} readers: \{reads.sum() / 2} reads/s, \{writes.sum() / 2} writes/s");
+        }
     }
 }